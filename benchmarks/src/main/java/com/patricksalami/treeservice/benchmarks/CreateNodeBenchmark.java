@@ -0,0 +1,44 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.dao.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates leaves below random nodes of the generated tree through NodeService.createNode, so the tree keeps growing
+ * during the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CreateNodeBenchmark {
+
+    private AtomicInteger nextId;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState tree) {
+        nextId = new AtomicInteger(tree.nodes.size() + 2);
+    }
+
+    @Benchmark
+    public Node createNode(TreeState tree) {
+        var parent = tree.nodes.get(ThreadLocalRandom.current().nextInt(tree.nodes.size()));
+        return tree.nodeService.createNode(new Node(nextId.getAndIncrement(), parent.id, 1));
+    }
+}
@@ -0,0 +1,76 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import com.patricksalami.treeservice.util.DescendantsResultSetExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of descendant rows without Postgres: writeNodes calls the writers directly, while
+ * extractResultSet runs the DescendantsResultSetExtractor over the rows of an in-memory H2 query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DescendantsSerializationBenchmark {
+
+    @Param({"JSON", "NDJSON", "BINARY"})
+    public DescendantsFormat format;
+
+    @Param("10000")
+    public int rows;
+
+    private Connection connection;
+    private PreparedStatement statement;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:");
+        statement = connection.prepareStatement("SELECT X, X / 10, 1, 5 FROM SYSTEM_RANGE(1, ?)");
+        statement.setInt(1, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Benchmark
+    public void writeNodes() throws IOException {
+        try (var writer = format.createWriter(NullOutputStream.INSTANCE)) {
+            writer.writeStart(false);
+            for (var id = 1; id <= rows; id++) {
+                writer.writeNode(id, id / 10, 1, 5);
+            }
+            writer.writeEnd(false, null);
+        }
+    }
+
+    @Benchmark
+    public void extractResultSet() throws SQLException {
+        try (var resultSet = statement.executeQuery()) {
+            new DescendantsResultSetExtractor(NullOutputStream.INSTANCE, format).extractData(resultSet);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.patricksalami.treeservice.TreeServiceApplication;
+import com.patricksalami.treeservice.benchmarks.TreeGenerator.Branching;
+import com.patricksalami.treeservice.dao.Node;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test against the REST API. A generated tree (or forest) is imported through /nodes/import, then a
+ * number of threads run a weighted mix of descendant reads, single gets, inserts and moves for a fixed duration, and
+ * the latency distribution of every operation is reported with HdrHistogram.
+ *
+ * Inserts add leaves below random generated nodes, and every thread only moves the leaves it inserted itself to other
+ * generated nodes, so moves can never create a cycle and the generated tree keeps its shape during the run.
+ *
+ * By default the service is started in this JVM (against the database of the benchmarks, see TreeState); with
+ * --url=http://host:port/api/v1 an already running service is used instead. All options are given as --name=value;
+ * options that are not known here (e.g. --treeservice.node-cache.enabled=true) are passed on to the service.
+ * If --rate is set, the threads send requests on a fixed schedule and latencies are measured from the scheduled
+ * start of a request (so a stalled service is not hidden by coordinated omission), otherwise every thread sends the
+ * next request as soon as the previous one has completed.
+ */
+public class LoadTest {
+
+    enum Operation {
+        READ_DESCENDANTS, GET_NODE, INSERT, MOVE
+    }
+
+    private static final Map<String, String> SHAPES = Map.of(
+            "wide", "size=100000,roots=1,branching=FIXED,fan-out=1000,depth=2",
+            "deep", "size=2000,roots=1,branching=FIXED,fan-out=1,depth=2000",
+            "forest", "size=30000,roots=1000,branching=UNIFORM,fan-out=3,depth=3",
+            "random", "size=100000,roots=1,branching=GEOMETRIC,fan-out=8,depth=12");
+
+    private static final int IMPORT_CHUNK_SIZE = 10000;
+
+    private final Map<String, String> options;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private String url;
+    private List<Node> nodes;
+    private AtomicInteger nextId;
+    private volatile boolean running;
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+        for (var operation : Operation.values()) {
+            recorders.put(operation, new Recorder(3));
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        var serviceArguments = new ArrayList<String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("options must be given as --name=value: " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        var shape = options.getOrDefault("shape", "random");
+        if (!SHAPES.containsKey(shape)) {
+            throw new IllegalArgumentException("unknown shape " + shape + ", expected one of " + SHAPES.keySet());
+        }
+        for (var option : SHAPES.get(shape).split(",")) {
+            var separator = option.indexOf('=');
+            options.putIfAbsent(option.substring(0, separator), option.substring(separator + 1));
+        }
+        for (var arg : args) {
+            if (arg.startsWith("--spring.") || arg.startsWith("--treeservice.") || arg.startsWith("--logging.")) {
+                serviceArguments.add(arg);
+            }
+        }
+        ConfigurableApplicationContext context = null;
+        if (!options.containsKey("url")) {
+            serviceArguments.add("--server.port=0");
+            context = new SpringApplicationBuilder(TreeServiceApplication.class)
+                    .bannerMode(Banner.Mode.OFF)
+                    .run(TreeState.arguments(serviceArguments));
+            options.put("url", "http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                    + "/api/v1");
+        }
+        try {
+            new LoadTest(options).run();
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    void run() throws Exception {
+        url = options.get("url");
+        var size = intOption("size", 0);
+        var firstId = intOption("first-id", 1000);
+        var random = new Random(intOption("seed", 42));
+        nodes = TreeGenerator.generate(firstId, size, intOption("roots", 1),
+                Branching.valueOf(options.get("branching").toUpperCase()), intOption("fan-out", 0),
+                intOption("depth", 0), random);
+        nextId = new AtomicInteger(firstId + size);
+        importTree();
+
+        var weights = parseMix(options.getOrDefault("mix", "40:40:15:5"));
+        var threads = intOption("threads", 8);
+        var rate = intOption("rate", 0);
+        var workers = new ArrayList<Thread>();
+        running = true;
+        for (var i = 0; i < threads; i++) {
+            var worker = new Thread(() -> work(weights, rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0),
+                    "load-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        TimeUnit.SECONDS.sleep(intOption("warmup", 10));
+        recorders.values().forEach(Recorder::reset);
+        errors.values().forEach(count -> count.set(0));
+        var duration = intOption("duration", 60);
+        TimeUnit.SECONDS.sleep(duration);
+        var histograms = new EnumMap<Operation, Histogram>(Operation.class);
+        for (var operation : Operation.values()) {
+            histograms.put(operation, recorders.get(operation).getIntervalHistogram());
+        }
+        running = false;
+        for (var worker : workers) {
+            worker.join();
+        }
+        report(histograms, duration);
+    }
+
+    private void importTree() throws IOException, InterruptedException {
+        var start = System.nanoTime();
+        for (var i = 0; i < nodes.size(); i += IMPORT_CHUNK_SIZE) {
+            var chunk = nodes.subList(i, Math.min(i + IMPORT_CHUNK_SIZE, nodes.size()));
+            var response = client.send(HttpRequest.newBuilder(URI.create(url + "/nodes/import"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(chunk)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 201) {
+                throw new IllegalStateException("import failed with status " + response.statusCode() + ": "
+                        + response.body());
+            }
+        }
+        System.out.printf("imported %d nodes in %.1f s%n", nodes.size(), (System.nanoTime() - start) / 1e9);
+    }
+
+    private void work(int[] weights, long intervalNanos) {
+        var random = ThreadLocalRandom.current();
+        var total = 0;
+        for (var weight : weights) {
+            total += weight;
+        }
+        var inserted = new ArrayList<Integer>();
+        var scheduled = System.nanoTime();
+        while (running) {
+            if (intervalNanos > 0) {
+                scheduled += intervalNanos;
+                var delay = scheduled - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            } else {
+                scheduled = System.nanoTime();
+            }
+            var operation = pick(weights, random.nextInt(total));
+            if (operation == Operation.MOVE && inserted.isEmpty()) {
+                operation = Operation.INSERT;
+            }
+            var node = nodes.get(random.nextInt(nodes.size()));
+            var id = 0;
+            HttpRequest request;
+            switch (operation) {
+                case READ_DESCENDANTS:
+                    request = HttpRequest.newBuilder(URI.create(url + "/node/" + node.id + "/descendants")).build();
+                    break;
+                case GET_NODE:
+                    request = HttpRequest.newBuilder(URI.create(url + "/node/" + node.id)).build();
+                    break;
+                case INSERT:
+                    id = nextId.getAndIncrement();
+                    request = HttpRequest.newBuilder(URI.create(url + "/node"))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(String.format(
+                                    "{\"id\":%d,\"parentId\":%d,\"rootId\":%d}", id, node.id, node.rootId)))
+                            .build();
+                    break;
+                default:
+                    var leaf = inserted.get(random.nextInt(inserted.size()));
+                    request = HttpRequest.newBuilder(URI.create(url + "/moveNode/" + leaf + "/" + node.id)).build();
+            }
+            try {
+                var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() >= 400) {
+                    errors.get(operation).incrementAndGet();
+                } else if (operation == Operation.INSERT) {
+                    inserted.add(id);
+                }
+            } catch (IOException e) {
+                errors.get(operation).incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            }
+            recorders.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - scheduled));
+        }
+    }
+
+    private void report(Map<Operation, Histogram> histograms, int duration) throws IOException {
+        System.out.printf("%-17s %9s %8s %7s %9s %9s %9s %9s %9s %9s%n", "operation (ms)", "count", "ops/s", "errors",
+                "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (var operation : Operation.values()) {
+            var histogram = histograms.get(operation);
+            System.out.printf("%-17s %9d %8.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation,
+                    histogram.getTotalCount(), (double) histogram.getTotalCount() / duration,
+                    errors.get(operation).get(), histogram.getMean() / 1000,
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0);
+            // the .hgrm files can be plotted with the HdrHistogram plotter
+            if (options.containsKey("hgrm")) {
+                var file = options.get("hgrm") + "-" + operation.name().toLowerCase() + ".hgrm";
+                try (var output = new PrintStream(new FileOutputStream(file))) {
+                    histogram.outputPercentileDistribution(output, 1000.0);
+                }
+            }
+        }
+    }
+
+    private static Operation pick(int[] weights, int value) {
+        for (var operation : Operation.values()) {
+            value -= weights[operation.ordinal()];
+            if (value < 0) {
+                return operation;
+            }
+        }
+        return Operation.GET_NODE;
+    }
+
+    private static int[] parseMix(String mix) {
+        var parts = mix.split(":");
+        if (parts.length != Operation.values().length) {
+            throw new IllegalArgumentException("the mix must give the weights of reads, gets, inserts and moves, "
+                    + "e.g. 40:40:15:5");
+        }
+        var weights = new int[parts.length];
+        for (var i = 0; i < parts.length; i++) {
+            weights[i] = Integer.parseInt(parts[i]);
+        }
+        return weights;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+}
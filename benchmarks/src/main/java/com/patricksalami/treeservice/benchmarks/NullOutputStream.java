@@ -0,0 +1,20 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * discards everything that is written; unlike OutputStream.nullOutputStream it can still be written to after it
+ * was closed, so one instance can be shared by all invocations (the writers close the stream when they are done)
+ */
+public class NullOutputStream extends OutputStream {
+
+    public static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+}
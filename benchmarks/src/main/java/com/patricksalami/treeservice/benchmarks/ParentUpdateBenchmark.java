@@ -0,0 +1,49 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.dao.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detaches the subtree of the first node at the given height from its ancestors (removeNodeFromParentUpdate) and
+ * attaches it to the same parent again (addNodeToParentUpdate) in one transaction, so the tree is unchanged after
+ * every invocation. The closure table work is the same as for a move of that subtree, without the height updates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParentUpdateBenchmark {
+
+    @Param({"1", "3"})
+    public int height;
+
+    private Node node;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState tree) {
+        node = tree.firstNodeAtHeight(height);
+    }
+
+    @Benchmark
+    public void removeAndAddToParent(TreeState tree) {
+        tree.transactionTemplate.executeWithoutResult(status -> {
+            tree.nodeRepository.removeNodeFromParentUpdate(node.id);
+            tree.nodeRepository.addNodeToParentUpdate(node.id, node.parentId);
+        });
+    }
+}
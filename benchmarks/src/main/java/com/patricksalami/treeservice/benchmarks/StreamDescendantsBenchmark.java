@@ -0,0 +1,48 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams all descendants of the first node at the given height (0 is the root, so the whole tree is streamed) through
+ * NodeService, i.e. in a read-only transaction with the configured fetch size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StreamDescendantsBenchmark {
+
+    @Param({"0", "2"})
+    public int height;
+
+    @Param({"JSON", "BINARY"})
+    public DescendantsFormat format;
+
+    private int nodeId;
+
+    @Setup(Level.Trial)
+    public void setUp(TreeState tree) {
+        nodeId = tree.firstNodeAtHeight(height).id;
+    }
+
+    @Benchmark
+    public void streamDescendants(TreeState tree) {
+        tree.nodeService.streamDescendantsById(nodeId, 1, Integer.MAX_VALUE, format, NullOutputStream.INSTANCE);
+    }
+}
@@ -0,0 +1,106 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.dao.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates trees breadth-first: every node draws its number of children from a branching distribution, until the
+ * tree has the requested number of nodes or the next level would be deeper than the maximum depth (so a tree may end
+ * up smaller than requested, and the last level may only be partially filled). If none of the nodes of a level draws
+ * a child although nodes are left, the last node of the level gets one, so random trees do not stop early.
+ */
+public class TreeGenerator {
+
+    public enum Branching {
+        /** every node has exactly fanOut children */
+        FIXED,
+        /** the number of children is uniformly distributed between 0 and 2 * fanOut */
+        UNIFORM,
+        /** the number of children is geometrically distributed with mean fanOut, so a few nodes are very wide */
+        GEOMETRIC;
+
+        int draw(int fanOut, Random random) {
+            switch (this) {
+                case UNIFORM:
+                    return random.nextInt(2 * fanOut + 1);
+                case GEOMETRIC:
+                    var p = 1.0 / (fanOut + 1);
+                    return (int) Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+                default:
+                    return fanOut;
+            }
+        }
+    }
+
+    /**
+     * generates a tree with fixed branching below the existing root node 1 (which is created by benchmark-data.sql
+     * when the application starts)
+     *
+     * @param size
+     * @param fanOut
+     * @param depth
+     * @return the generated nodes (without the root) with their heights, ordered so that every parent comes before
+     * its children
+     */
+    public static List<Node> generate(int size, int fanOut, int depth) {
+        var nodes = new ArrayList<Node>();
+        grow(nodes, new Node(1, 0, 1, 0), size - 1, Branching.FIXED, fanOut, depth, null, 2);
+        return nodes;
+    }
+
+    /**
+     * generates a forest of new trees with consecutive ids starting at firstId; the nodes are distributed evenly
+     * among the roots
+     *
+     * @param firstId
+     * @param size
+     * @param roots
+     * @param branching
+     * @param fanOut
+     * @param depth
+     * @param random
+     * @return the generated nodes including the roots, with their heights, ordered so that every parent comes
+     * before its children
+     */
+    public static List<Node> generate(int firstId, int size, int roots, Branching branching, int fanOut, int depth,
+                                      Random random) {
+        var nodes = new ArrayList<Node>(size);
+        var nextId = firstId;
+        for (var i = 0; i < roots; i++) {
+            var treeSize = size / roots + (i < size % roots ? 1 : 0);
+            var root = new Node(nextId, 0, nextId, 0);
+            nodes.add(root);
+            nextId = grow(nodes, root, treeSize - 1, branching, fanOut, depth, random, nextId + 1);
+        }
+        return nodes;
+    }
+
+    /**
+     * adds up to count descendants below the given root
+     *
+     * @return the next free id
+     */
+    private static int grow(List<Node> nodes, Node root, int count, Branching branching, int fanOut, int depth,
+                            Random random, int nextId) {
+        var endId = nextId + count;
+        List<Node> level = List.of(root);
+        for (var height = root.height + 1; height <= depth && nextId < endId; height++) {
+            var nextLevel = new ArrayList<Node>();
+            for (var parent : level) {
+                var children = branching.draw(fanOut, random);
+                for (var i = 0; i < children && nextId < endId; i++) {
+                    nextLevel.add(new Node(nextId++, parent.id, root.rootId, height));
+                }
+            }
+            if (nextLevel.isEmpty()) {
+                nextLevel.add(new Node(nextId++, level.get(level.size() - 1).id, root.rootId, height));
+            }
+            nodes.addAll(nextLevel);
+            level = nextLevel;
+        }
+        return nextId;
+    }
+}
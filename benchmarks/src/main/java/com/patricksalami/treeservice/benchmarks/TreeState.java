@@ -0,0 +1,100 @@
+package com.patricksalami.treeservice.benchmarks;
+
+import com.patricksalami.treeservice.TreeServiceApplication;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.service.NodeService;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the application (without the web server) once per trial and imports a generated tree into the database.
+ * The database is taken from the SPRING_DATASOURCE_* environment variables and defaults to the test database of
+ * docker-compose; note that all tables are truncated when the application starts (see benchmark-data.sql, which
+ * only creates the root node 1).
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+
+    @Param("10000")
+    public int size;
+
+    @Param("10")
+    public int fanOut;
+
+    @Param("4")
+    public int depth;
+
+    public ConfigurableApplicationContext context;
+    public NodeService nodeService;
+    public NodeRepository nodeRepository;
+    public TransactionTemplate transactionTemplate;
+    public List<Node> nodes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new SpringApplicationBuilder(TreeServiceApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .run(arguments(List.of()));
+        nodeService = context.getBean(NodeService.class);
+        nodeRepository = context.getBean(NodeRepository.class);
+        transactionTemplate = context.getBean(TransactionTemplate.class);
+        nodes = TreeGenerator.generate(size, fanOut, depth);
+        nodeService.importNodes(nodes);
+        context.getBean(JdbcTemplate.class).execute("ANALYZE");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * @param height
+     * @return the first generated node at the given height, or the root for height 0
+     */
+    public Node firstNodeAtHeight(int height) {
+        if (height == 0) {
+            return new Node(1, 0, 1, 0);
+        }
+        for (var node : nodes) {
+            if (node.height == height) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("the generated tree has no node at height " + height);
+    }
+
+    /**
+     * @param extraArguments
+     * @return the arguments for starting the application against the benchmark database
+     */
+    static String[] arguments(List<String> extraArguments) {
+        var arguments = new ArrayList<String>();
+        if (System.getenv("SPRING_DATASOURCE_URL") == null) {
+            arguments.add("--spring.datasource.url=jdbc:postgresql://localhost:5433/treeservice-test"
+                    + "?reWriteBatchedInserts=true");
+            arguments.add("--spring.datasource.username=treeservice-test");
+            arguments.add("--spring.datasource.password=treeservice-test");
+        }
+        arguments.add("--spring.datasource.data=classpath:benchmark-data.sql");
+        arguments.add("--treeservice.subtree-stats.reconcile.enabled=false");
+        arguments.add("--logging.level.root=WARN");
+        arguments.addAll(extraArguments);
+        return arguments.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,89 @@
+package com.patricksalami.treeservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesDeletedEvent;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * A bounded read-through cache in front of NodeRepository.findById. Eviction is done by Caffeine (W-TinyLFU), and
+ * hit, miss and eviction counts are published as the cache.* metrics with the tag cache=nodes.
+ *
+ * Nodes only change when they are moved: a move changes the parent of the moved node and the root and height of
+ * every node in its subtree, so the whole subtree is invalidated once the move has been committed. A lookup that
+ * reads the old values while the move is still in progress is either finished before the invalidation (and then
+ * removed by it), or waits for it, because Caffeine does not remove an entry while it is being loaded. Lookups of
+ * nodes that do not exist are not cached, so creating a node does not require an invalidation; deleted nodes are
+ * invalidated once their batch has been committed.
+ *
+ * The cache is enabled with treeservice.node-cache.enabled=true; like the topology index, it assumes that the
+ * database is only modified through this instance of the service (or that invalidateAll is called afterwards), so
+ * it must not be enabled when several instances share the database.
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.node-cache.enabled", havingValue = "true")
+public class NodeCache {
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${treeservice.node-cache.size:100000}")
+    long maximumSize;
+
+    private Cache<Integer, Node> cache;
+
+    @PostConstruct
+    void createCache() {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "nodes");
+    }
+
+    /**
+     * returns the node from the cache, loading it from the database on a miss, or null if the node does not exist;
+     * callers get their own copy, so that they can modify it without affecting the cached node
+     *
+     * @param id
+     * @return
+     */
+    public Node find(int id) {
+        var node = cache.get(id, nodeRepository::findById);
+        return node != null ? new Node(node.id, node.parentId, node.rootId, node.height) : null;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @TransactionalEventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onNodeMoved(NodeMovedEvent event) {
+        nodeRepository.forEachSubtreeId(event.getNodeId(), cache::invalidate);
+    }
+
+    @TransactionalEventListener
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void onNodesDeleted(NodesDeletedEvent event) {
+        for (var node : event.getNodes()) {
+            cache.invalidate(node.id);
+        }
+    }
+}
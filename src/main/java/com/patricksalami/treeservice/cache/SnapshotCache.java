@@ -0,0 +1,114 @@
+package com.patricksalami.treeservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded cache of serialized descendants responses, so that clients that poll the same (small or medium sized)
+ * subtrees do not cause a closure table scan for every request. Responses are keyed by their ETag (see
+ * SubtreeVersions) and the request parameters, so an entry can never be served after its subtree has changed; stale
+ * entries are simply not requested any more and get evicted.
+ *
+ * The cache is limited to treeservice.snapshot-cache.max-bytes bytes in total, and responses larger than
+ * treeservice.snapshot-cache.max-entry-bytes are never cached, so that a single huge subtree can not push out all
+ * other entries. It requires treeservice.subtree-versions.enabled=true.
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.snapshot-cache.enabled", havingValue = "true")
+public class SnapshotCache {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${treeservice.snapshot-cache.max-bytes:67108864}")
+    long maximumBytes;
+
+    @Value("${treeservice.snapshot-cache.max-entry-bytes:1048576}")
+    int maximumEntryBytes;
+
+    private Cache<String, byte[]> cache;
+
+    @PostConstruct
+    void createCache() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .<String, byte[]>weigher((key, value) -> key.length() + value.length)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "snapshots");
+    }
+
+    public byte[] get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * wraps the output stream of a response, keeping a copy of everything written to it as long as the response is
+     * not larger than max-entry-bytes; the copy is only added to the cache once store() is called, so responses that
+     * failed half way are never cached
+     *
+     * @param key
+     * @param outputStream
+     * @return
+     */
+    public Capture capture(String key, OutputStream outputStream) {
+        return new Capture(key, outputStream);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public class Capture extends FilterOutputStream {
+
+        private final String key;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Capture(String key, OutputStream outputStream) {
+            super(outputStream);
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        public void store() {
+            if (copy != null) {
+                cache.put(key, copy.toByteArray());
+            }
+        }
+
+        private void checkSize() {
+            if (copy.size() > maximumEntryBytes) {
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.patricksalami.treeservice.cache;
+
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesCreatedEvent;
+import com.patricksalami.treeservice.events.NodesDeletedEvent;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import com.patricksalami.treeservice.util.IntIntHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a version for the subtree of every node, so that the descendants endpoint can answer conditional requests
+ * (If-None-Match) without querying the database. The version of a node changes whenever its list of descendants
+ * changes, which is the case
+ * - for the parent of a new node and all of the parent's ancestors,
+ * - for the old and the new parent of a moved node and all of their ancestors,
+ * - for the moved node and all of its descendants, since the heights of their descendants change,
+ * - for the remaining ancestors of deleted nodes; the versions of the deleted nodes are dropped.
+ *
+ * Versions are taken from a single sequence and only grow; a node that has not changed since startup has version
+ * 0. They are only kept in memory, so every ETag also contains the startup time of the service, and like the node
+ * cache, the versions assume that the database is only modified through this instance of the service: with several
+ * instances, one of them would answer 304 Not Modified for a subtree that another one has changed.
+ *
+ * Versions are updated after the transaction that changed the tree has been committed; a request that arrives in
+ * between gets the new data with the old ETag, which only means that the next request can not be answered with
+ * 304 Not Modified. The versions are updated after the other caches (the topology index applies the change right
+ * before the commit, the node cache right after it), so that a request that sees a new version also sees the change
+ * in them.
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.subtree-versions.enabled", havingValue = "true")
+public class SubtreeVersions {
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private final IntIntHashMap versions = new IntIntHashMap(1024, 0);
+
+    public synchronized int getVersion(int nodeId) {
+        return versions.get(nodeId);
+    }
+
+    /**
+     * returns the (strong) ETag for the descendants of a node in the given format
+     *
+     * @param nodeId
+     * @param format
+     * @return
+     */
+    public String getETag(int nodeId, DescendantsFormat format) {
+        return String.format("\"%s-%d-%s\"", epoch, getVersion(nodeId), format.name().toLowerCase());
+    }
+
+    @TransactionalEventListener
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void onNodesCreated(NodesCreatedEvent event) {
+        var version = sequence.incrementAndGet();
+        var createdIds = new HashSet<Integer>();
+        for (var node : event.getNodes()) {
+            createdIds.add(node.id);
+            setVersion(node.id, version);
+        }
+        // the ancestors of new nodes whose parents are new as well are covered by the parents' parents
+        var parentIds = new HashSet<Integer>();
+        for (var node : event.getNodes()) {
+            if (node.parentId > 0 && !createdIds.contains(node.parentId)) {
+                parentIds.add(node.parentId);
+            }
+        }
+        for (var parentId : parentIds) {
+            nodeRepository.forEachAncestorId(parentId, id -> setVersion(id, version));
+        }
+    }
+
+    @TransactionalEventListener
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void onNodeMoved(NodeMovedEvent event) {
+        var version = sequence.incrementAndGet();
+        if (event.getOldParentId() > 0) {
+            nodeRepository.forEachAncestorId(event.getOldParentId(), id -> setVersion(id, version));
+        }
+        nodeRepository.forEachAncestorId(event.getNewParentId(), id -> setVersion(id, version));
+        nodeRepository.forEachSubtreeId(event.getNodeId(), id -> setVersion(id, version));
+    }
+
+    @TransactionalEventListener
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void onNodesDeleted(NodesDeletedEvent event) {
+        var version = sequence.incrementAndGet();
+        var deletedIds = new HashSet<Integer>();
+        for (var node : event.getNodes()) {
+            deletedIds.add(node.id);
+            removeVersion(node.id);
+        }
+        var parentIds = new HashSet<Integer>();
+        for (var node : event.getNodes()) {
+            if (node.parentId > 0 && !deletedIds.contains(node.parentId)) {
+                parentIds.add(node.parentId);
+            }
+        }
+        if (!parentIds.isEmpty()) {
+            nodeRepository.forEachAncestorId(parentIds, id -> setVersion(id, version));
+        }
+    }
+
+    private synchronized void removeVersion(int nodeId) {
+        versions.remove(nodeId);
+    }
+
+    private synchronized void setVersion(int nodeId, int version) {
+        if (versions.get(nodeId) < version) {
+            versions.put(nodeId, version);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.patricksalami.treeservice.config;
+
+import com.patricksalami.treeservice.service.StreamLimiter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Runs streaming responses on a dedicated, bounded thread pool instead of Spring Boot's default task executor, which
+ * has an unbounded queue. The pool has one thread per stream permit (see StreamLimiter), so a stream that has been
+ * admitted never waits for a thread, and the queue only needs to cover the short moment between a stream releasing
+ * its permit and its thread returning to the pool. This only holds as long as every asynchronous response takes a
+ * permit first: the descendants and ancestors streams do, and responses that are already in memory (e.g. from the
+ * snapshot cache) are written to the response on the request thread instead.
+ *
+ * The executor is deliberately not registered as a bean, so that it does not replace the application's default
+ * task executor.
+ */
+@Configuration
+public class StreamingConfiguration implements WebMvcConfigurer {
+
+    @Autowired
+    StreamLimiter streamLimiter;
+
+    private final ThreadPoolTaskExecutor streamTaskExecutor = new ThreadPoolTaskExecutor();
+
+    @PostConstruct
+    void startExecutor() {
+        streamTaskExecutor.setCorePoolSize(streamLimiter.getMaxConcurrent());
+        streamTaskExecutor.setMaxPoolSize(streamLimiter.getMaxConcurrent());
+        streamTaskExecutor.setQueueCapacity(streamLimiter.getMaxConcurrent());
+        streamTaskExecutor.setThreadNamePrefix("stream-");
+        streamTaskExecutor.initialize();
+    }
+
+    @PreDestroy
+    void stopExecutor() {
+        streamTaskExecutor.shutdown();
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(streamTaskExecutor);
+    }
+}
@@ -1,17 +1,47 @@
 package com.patricksalami.treeservice.controller;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.patricksalami.treeservice.cache.SnapshotCache;
+import com.patricksalami.treeservice.cache.SubtreeVersions;
 import com.patricksalami.treeservice.exceptions.*;
+import com.patricksalami.treeservice.dao.CommonAncestor;
+import com.patricksalami.treeservice.dao.DescendantsCursor;
 import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeMove;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.dao.SubtreeDeletion;
+import com.patricksalami.treeservice.dao.SubtreeStats;
+import com.patricksalami.treeservice.metrics.StreamMetrics;
+import com.patricksalami.treeservice.service.GroupCommitWriter;
 import com.patricksalami.treeservice.service.NodeService;
+import com.patricksalami.treeservice.service.StreamLimiter;
+import com.patricksalami.treeservice.service.SubtreeDeleter;
+import com.patricksalami.treeservice.util.DescendantsFormat;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 @RestController()
 public class NodeController {
@@ -19,26 +49,155 @@ public class NodeController {
     @Autowired
     NodeService nodeService;
 
+    @Autowired
+    StreamLimiter streamLimiter;
+
+    @Autowired
+    SubtreeDeleter subtreeDeleter;
+
+    @Autowired
+    StreamMetrics streamMetrics;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired(required = false)
+    SubtreeVersions subtreeVersions;
+
+    @Autowired(required = false)
+    GroupCommitWriter groupCommitWriter;
+
+    @Autowired(required = false)
+    SnapshotCache snapshotCache;
+
+    /**
+     * the size of the response buffer of a descendants stream; once the buffer is full, writing blocks until the
+     * client has read enough data, which in turn stops reading from the database cursor
+     */
+    @Value("${treeservice.stream.buffer-size:65536}")
+    int streamBufferSize;
+
     private final Logger logger = LoggerFactory.getLogger(NodeController.class);
 
+    /**
+     * the number of descendants per page, if the client asks for a page without specifying the limit
+     */
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * the largest number of descendants per page a client may ask for
+     */
+    private static final int MAX_PAGE_SIZE = 10000;
+
     /**
      * Returns all descendants of the specified node to the client; we do not create a new Node object
      * for each descendant in order to save time and to allow for very large result sets to be streamed directly
      * from the database, without any server memory limitations. The size of the resulting subtree is only limited
      * by the capacity of the database.
      *
+     * If limit or cursor are given, only a single page of descendants (ordered by depth) is returned, together with
+     * an opaque cursor for the next page: {"descendants": [...], "next": "..."}. The cursor is null on the last page.
+     * The limit must be between 1 and MAX_PAGE_SIZE.
+     *
+     * minDepth and maxDepth restrict the result to descendants within the given levels below the node, e.g.
+     * maxDepth=1 returns only the children and minDepth=2&maxDepth=2 only the grandchildren.
+     *
+     * The output format is selected with the Accept header: application/json (default), application/x-ndjson (one
+     * JSON object per line) or application/octet-stream (16 byte records of four big-endian ints, see
+     * BinaryDescendantsWriter).
+     *
+     * Every stream holds a database connection until the client has read the whole response, so the number of
+     * concurrent streams is limited (see StreamLimiter); if the limit is reached, the request is rejected with
+     * 503 Service Unavailable and should be retried later. Rows are read from the database cursor only as fast as the
+     * client reads the response, and at most treeservice.stream.buffer-size bytes are buffered per request.
+     *
+     * The duration, time to first byte, bytes and rows of every stream are recorded as treeservice.stream.* metrics
+     * (see StreamMetrics); responses served from the snapshot cache are not included.
+     *
+     * If subtree versions are enabled, the response carries an ETag that changes whenever the subtree changes, and a
+     * request with a matching If-None-Match header is answered with 304 Not Modified without a database query. With
+     * the snapshot cache, recently requested responses are served from memory as long as the subtree is unchanged;
+     * they are written directly by the request thread, so they neither need a stream permit nor a stream thread.
+     *
      * @param nodeId
+     * @param minDepth
+     * @param maxDepth
+     * @param limit
+     * @param cursor
+     * @param accept
+     * @param webRequest
+     * @param request
      * @param response
      * @return
      */
     @RequestMapping(value = "/node/{id}/descendants", method = RequestMethod.GET)
-    public ResponseEntity<StreamingResponseBody> getDescendants(@PathVariable("id") int nodeId,
-                                                         final HttpServletResponse response) {
-        response.setContentType("application/json");
+    public ResponseEntity<StreamingResponseBody> getDescendants(
+            @PathVariable("id") int nodeId,
+            @RequestParam(value = "minDepth", defaultValue = "1") int minDepth,
+            @RequestParam(value = "maxDepth", required = false) Integer maxDepth,
+            @RequestParam(value = "limit", required = false) Integer limit,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            final WebRequest webRequest,
+            final HttpServletRequest request,
+            final HttpServletResponse response) {
+        final long started = System.nanoTime();
+        final boolean paged = limit != null || cursor != null;
+        if (minDepth < 1) {
+            throw new InvalidParameterException("minDepth");
+        }
+        final int depthLimit = maxDepth != null ? maxDepth : Integer.MAX_VALUE;
+        if (depthLimit < minDepth) {
+            throw new InvalidParameterException("maxDepth");
+        }
+        if (limit != null && (limit <= 0 || limit > MAX_PAGE_SIZE)) {
+            throw new InvalidParameterException("limit");
+        }
+        final int pageSize = limit != null ? limit : DEFAULT_PAGE_SIZE;
+        final DescendantsCursor pageCursor = cursor != null
+                ? DescendantsCursor.decode(nodeId, cursor) : DescendantsCursor.first(nodeId);
+        final DescendantsFormat format = DescendantsFormat.fromAcceptHeader(accept);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        String snapshotKey = null;
+        if (subtreeVersions != null) {
+            var eTag = subtreeVersions.getETag(nodeId, format);
+            if (webRequest.checkNotModified(eTag)) {
+                return null;
+            }
+            if (snapshotCache != null) {
+                snapshotKey = String.format("%d:%d:%d:%d:%s:%s", nodeId, minDepth, depthLimit,
+                        paged ? pageSize : 0, cursor, eTag);
+                final byte[] snapshot = snapshotCache.get(snapshotKey);
+                if (snapshot != null) {
+                    response.setContentType(format.getMediaType());
+                    response.setContentLength(snapshot.length);
+                    try {
+                        response.getOutputStream().write(snapshot);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return null;
+                }
+            }
+        }
+        final String captureKey = snapshotKey;
+        final StreamLimiter.Permit permit = acquireStreamPermit(request);
+        response.setContentType(format.getMediaType());
+        response.setBufferSize(streamBufferSize);
         StreamingResponseBody stream = out -> {
-            OutputStream o = response.getOutputStream();
-            try {
-                nodeService.streamDescendantsById(nodeId, o);
+            final SnapshotCache.Capture capture = captureKey != null
+                    ? snapshotCache.capture(captureKey, response.getOutputStream()) : null;
+            final StreamMetrics.Recording o = streamMetrics.start(format, started,
+                    capture != null ? capture : response.getOutputStream());
+            try (permit) {
+                if (paged) {
+                    o.finish(nodeService.streamDescendantsPage(pageCursor, minDepth, depthLimit, pageSize, format, o));
+                } else {
+                    o.finish(nodeService.streamDescendantsById(nodeId, minDepth, depthLimit, format, o));
+                }
+                if (capture != null) {
+                    capture.store();
+                }
             } catch (final RuntimeException e) {
                 logger.error("Exception while streaming data {}", e);
             } finally {
@@ -49,6 +208,99 @@ public class NodeController {
         return new ResponseEntity(stream, HttpStatus.OK);
     }
 
+    /**
+     * takes a permit for a streaming response (see StreamLimiter); the stream releases its permit when it is done, and
+     * if it never starts (e.g. because the request timed out first), the permit is released when the request
+     * completes
+     *
+     * @param request
+     * @return
+     * @throws RuntimeException TooManyStreamsException if max-concurrent streams are already running
+     */
+    private StreamLimiter.Permit acquireStreamPermit(HttpServletRequest request) throws RuntimeException {
+        final StreamLimiter.Permit permit = streamLimiter.acquire();
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(permit,
+                new CallableProcessingInterceptor() {
+                    @Override
+                    public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) {
+                        permit.release();
+                    }
+                });
+        return permit;
+    }
+
+    /**
+     * Returns the ancestors of the specified node, starting with the parent and ending with the root, in the same
+     * formats as the descendants (selected with the Accept header); the result is empty for a root node. Like the
+     * descendants, the ancestors are streamed from a database cursor, so they count towards the limit of concurrent
+     * streams.
+     *
+     * @param nodeId
+     * @param accept
+     * @param request
+     * @return
+     */
+    @RequestMapping(value = "/node/{id}/ancestors", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> getAncestors(
+            @PathVariable("id") int nodeId,
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            final HttpServletRequest request) {
+        if (nodeService.findById(nodeId) == null) {
+            throw new InvalidNodeException(nodeId);
+        }
+        final DescendantsFormat format = DescendantsFormat.fromAcceptHeader(accept);
+        final StreamLimiter.Permit permit = acquireStreamPermit(request);
+        StreamingResponseBody stream = out -> {
+            try (permit) {
+                nodeService.streamAncestorsById(nodeId, format, out);
+            } catch (final RuntimeException e) {
+                logger.error("Exception while streaming data {}", e);
+            } finally {
+                out.close();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(format.getMediaType()))
+                .body(stream);
+    }
+
+    /**
+     * returns the ancestors of many nodes at once, e.g. [4, 7] returns {"4": [...], "7": [...]}, with the ancestors
+     * of every node ordered as in /node/{id}/ancestors; nodes that do not exist are left out
+     *
+     * @param nodeIds
+     * @return
+     */
+    @RequestMapping(value = "/nodes/ancestors", method = RequestMethod.POST)
+    public Map<Integer, List<Node>> getAncestors(@RequestBody List<Integer> nodeIds) {
+        return nodeService.findAncestors(nodeIds);
+    }
+
+    /**
+     * checks many parent-descendant relationships at once, e.g. [{"ancestorId": 1, "descendantId": 4}, ...]; like the
+     * closure table, every node is considered to be a descendant of itself
+     *
+     * @param relationships
+     * @return whether each of the relationships exists, in the same order
+     */
+    @RequestMapping(value = "/nodes/relationships", method = RequestMethod.POST)
+    public List<Boolean> areDescendantsOf(@RequestBody List<NodeRelationship> relationships) {
+        return nodeService.areDescendantsOf(relationships);
+    }
+
+    /**
+     * returns the lowest common ancestor of two nodes of the same tree, and the number of edges on the path between
+     * them
+     *
+     * @param nodeId
+     * @param otherNodeId
+     * @return
+     */
+    @RequestMapping(value = "/node/{id}/commonAncestor/{otherId}", method = RequestMethod.GET)
+    public CommonAncestor getCommonAncestor(@PathVariable("id") int nodeId, @PathVariable("otherId") int otherNodeId) {
+        return nodeService.findCommonAncestor(nodeId, otherNodeId);
+    }
+
     @RequestMapping(value = "/node", method = RequestMethod.POST)
     @ResponseStatus(HttpStatus.CREATED)
     public Node createNode(@RequestBody Node node) {
@@ -60,9 +312,66 @@ public class NodeController {
         if(node.rootId == 0) {
             throw new RequiredFieldException("rootId");
         }
+        if (groupCommitWriter != null) {
+            return groupCommitWriter.createNode(node);
+        }
         return nodeService.createNode(node);
     }
 
+    /**
+     * creates a list of nodes in a single transaction, for example many new children of a few existing parents; the
+     * nodes may be given in any order, as long as every parent and root is either part of the list or already exists
+     *
+     * @param nodes
+     * @return the created nodes with their heights, ordered so that every parent comes before its children
+     */
+    @RequestMapping(value = "/nodes", method = RequestMethod.POST)
+    @ResponseStatus(HttpStatus.CREATED)
+    public List<Node> createNodes(@RequestBody List<Node> nodes) {
+        return nodeService.createNodes(nodes);
+    }
+
+    /**
+     * imports a list of nodes (for example a whole tree); the body is parsed while it is read and committed in
+     * chunks (see NodeService.importNodes), and the nodes may be given in any order, as long as every parent and root
+     * is either part of the list or already exists; at most treeservice.import.max-deferred nodes may wait for a
+     * parent or root that is listed after them
+     *
+     * @param request
+     * @return the number of imported nodes
+     */
+    @RequestMapping(value = "/nodes/import", method = RequestMethod.POST)
+    @ResponseStatus(HttpStatus.CREATED)
+    public int importNodes(HttpServletRequest request) throws IOException {
+        MappingIterator<Node> nodes;
+        try {
+            nodes = objectMapper.readerFor(Node.class).readValues(request.getInputStream());
+        } catch (JsonProcessingException e) {
+            throw new InvalidParameterException("body");
+        }
+        try (nodes) {
+            return nodeService.importNodes(new Iterator<Node>() {
+                @Override
+                public boolean hasNext() {
+                    try {
+                        return nodes.hasNextValue();
+                    } catch (IOException e) {
+                        throw new InvalidParameterException("body");
+                    }
+                }
+
+                @Override
+                public Node next() {
+                    try {
+                        return nodes.nextValue();
+                    } catch (IOException e) {
+                        throw new InvalidParameterException("body");
+                    }
+                }
+            });
+        }
+    }
+
     @RequestMapping(value = "/node/{id}", method = RequestMethod.GET)
     public Node getNode(@PathVariable("id") int nodeId) {
         Node node = nodeService.findById(nodeId);
@@ -72,6 +381,18 @@ public class NodeController {
         return node;
     }
 
+    /**
+     * returns the number of descendants, the max depth (relative to the node) and the number of leaves of the subtree
+     * below a node, without reading the subtree
+     *
+     * @param nodeId
+     * @return
+     */
+    @RequestMapping(value = "/node/{id}/stats", method = RequestMethod.GET)
+    public SubtreeStats getSubtreeStats(@PathVariable("id") int nodeId) {
+        return nodeService.findSubtreeStats(nodeId);
+    }
+
     /**
      * changes the parent node of any node in the tree to a new parent by updating the database with new
      * parent-descendant entries for each new parent and each of the descendants in the subtree, as well as the node
@@ -86,6 +407,49 @@ public class NodeController {
         nodeService.moveNode(nodeId, newParentId);
     }
 
+    /**
+     * deletes a node together with its whole subtree; the deletion runs in the background in batches of
+     * treeservice.delete.batch-size nodes, starting with the deepest nodes, so the request returns immediately with
+     * 202 Accepted and the progress of the deletion, which can be followed at the URL in the Location header
+     *
+     * @param nodeId
+     * @return
+     */
+    @RequestMapping(value = "/node/{id}", method = RequestMethod.DELETE)
+    public ResponseEntity<SubtreeDeletion> deleteNode(@PathVariable("id") int nodeId) {
+        var deletion = subtreeDeleter.delete(nodeId);
+        var location = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/deletions/{id}")
+                .buildAndExpand(deletion.id)
+                .toUri();
+        return ResponseEntity.accepted().location(location).body(deletion);
+    }
+
+    /**
+     * returns the progress of a subtree deletion: its state (QUEUED, RUNNING, COMPLETED or FAILED), the size of the
+     * subtree when the deletion was started and the number of nodes that have been deleted so far
+     *
+     * @param deletionId
+     * @return
+     */
+    @RequestMapping(value = "/deletions/{id}", method = RequestMethod.GET)
+    public SubtreeDeletion getDeletion(@PathVariable("id") int deletionId) {
+        return subtreeDeleter.find(deletionId);
+    }
+
+    /**
+     * moves many nodes to new parents in a single transaction, e.g. [{"nodeId": 4, "newParentId": 3}, ...]; either
+     * all moves are applied or none of them
+     *
+     * @param moves
+     * @return the number of nodes that were moved
+     */
+    @RequestMapping(value = "/nodes/move", method = RequestMethod.POST)
+    @ResponseStatus(HttpStatus.OK)
+    public int moveNodes(@RequestBody List<NodeMove> moves) {
+        return nodeService.moveNodes(moves);
+    }
+
     @ExceptionHandler(CyclicalTreeStructureException.class)
     public final ResponseEntity<String> handleAllExceptions(CyclicalTreeStructureException ex) {
         return new ResponseEntity<String>("You may not move a node to one of its descendants",
@@ -108,6 +472,52 @@ public class NodeController {
         return new ResponseEntity<String>("A node with this ID already exists", HttpStatus.CONFLICT);
     }
 
+    @ExceptionHandler(InvalidParameterException.class)
+    public final ResponseEntity<String> handleAllExceptions(InvalidParameterException e) {
+        return new ResponseEntity<String>(String.format("%s is invalid", e.getParameterName()),
+                HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(TooManyDeferredNodesException.class)
+    public final ResponseEntity<String> handleAllExceptions(TooManyDeferredNodesException e) {
+        return new ResponseEntity<String>(String.format("More than %d nodes are waiting for a parent or root that " +
+                "is listed after them, please list parents before their children", e.getLimit()),
+                HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(TooManyStreamsException.class)
+    public final ResponseEntity<String> handleAllExceptions(TooManyStreamsException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("Too many concurrent requests for descendants, please try again later");
+    }
+
+    @ExceptionHandler(WriteTimeoutException.class)
+    public final ResponseEntity<String> handleAllExceptions(WriteTimeoutException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("The node could not be created in time, please check whether it exists and try again");
+    }
+
+    @ExceptionHandler(CannotAcquireLockException.class)
+    public final ResponseEntity<String> handleAllExceptions(CannotAcquireLockException e) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body("A node was moved to another tree by a concurrent request, please try again");
+    }
+
+    @ExceptionHandler(NoCommonAncestorException.class)
+    public final ResponseEntity<String> handleAllExceptions(NoCommonAncestorException e) {
+        return new ResponseEntity<String>(String.format("The nodes %d and %d are not part of the same tree",
+                e.getNodeId(), e.getOtherNodeId()), HttpStatus.NOT_FOUND);
+    }
+
+    @ExceptionHandler(InvalidDeletionException.class)
+    public final ResponseEntity<String> handleAllExceptions(InvalidDeletionException e) {
+        return new ResponseEntity<String>(String.format("The specified deletion %d does not exist",
+                e.getDeletionId()), HttpStatus.NOT_FOUND);
+    }
+
     @ExceptionHandler(RequiredFieldException.class)
     public final ResponseEntity<String> handleAllExceptions(RequiredFieldException e) {
         return new ResponseEntity<String>(String.format("%s is a required field", e.getFieldName()),
@@ -0,0 +1,23 @@
+package com.patricksalami.treeservice.dao;
+
+/**
+ * the lowest common ancestor of two nodes, and the number of edges on the path between the two nodes (which passes
+ * through the common ancestor)
+ */
+public class CommonAncestor {
+    public int nodeId;
+    public int otherNodeId;
+    public int ancestorId;
+    public int distance;
+
+    public CommonAncestor(int nodeId, int otherNodeId, int ancestorId, int distance) {
+        this.nodeId = nodeId;
+        this.otherNodeId = otherNodeId;
+        this.ancestorId = ancestorId;
+        this.distance = distance;
+    }
+
+    public CommonAncestor() {
+
+    }
+}
@@ -0,0 +1,61 @@
+package com.patricksalami.treeservice.dao;
+
+import com.patricksalami.treeservice.exceptions.InvalidParameterException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of a page of descendants within the subtree of a node. Descendants are paged in (depth, descendant) order,
+ * which is the order of the pdc_idx(ancestor, depth, descendant) index, so the next page can be read with an index
+ * range scan that starts right after the last row of the previous page instead of skipping rows with OFFSET.
+ *
+ * Clients only see the cursor as an opaque string.
+ */
+public class DescendantsCursor {
+    public final int nodeId;
+    public final int depth;
+    public final int descendant;
+
+    public DescendantsCursor(int nodeId, int depth, int descendant) {
+        this.nodeId = nodeId;
+        this.depth = depth;
+        this.descendant = descendant;
+    }
+
+    /**
+     * the cursor for the first page; the only row with depth 0 is the one linking the node to itself, so starting
+     * after (0, Integer.MAX_VALUE) skips exactly that row
+     *
+     * @param nodeId
+     * @return
+     */
+    public static DescendantsCursor first(int nodeId) {
+        return new DescendantsCursor(nodeId, 0, Integer.MAX_VALUE);
+    }
+
+    public String encode() {
+        var value = nodeId + ":" + depth + ":" + descendant;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * decodes a cursor that was previously returned for the subtree of the given node
+     *
+     * @param nodeId
+     * @param cursor
+     * @return
+     * @throws InvalidParameterException if the cursor is malformed or belongs to a different node
+     */
+    public static DescendantsCursor decode(int nodeId, String cursor) throws InvalidParameterException {
+        try {
+            var parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII).split(":");
+            if (parts.length != 3 || Integer.parseInt(parts[0]) != nodeId) {
+                throw new InvalidParameterException("cursor");
+            }
+            return new DescendantsCursor(nodeId, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterException("cursor");
+        }
+    }
+}
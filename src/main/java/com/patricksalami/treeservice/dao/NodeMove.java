@@ -0,0 +1,18 @@
+package com.patricksalami.treeservice.dao;
+
+/**
+ * a single entry of a batch move: the node (with its subtree) that is moved, and its new parent
+ */
+public class NodeMove {
+    public int nodeId;
+    public int newParentId;
+
+    public NodeMove(int nodeId, int newParentId) {
+        this.nodeId = nodeId;
+        this.newParentId = newParentId;
+    }
+
+    public NodeMove() {
+
+    }
+}
@@ -0,0 +1,18 @@
+package com.patricksalami.treeservice.dao;
+
+/**
+ * a single entry of a batch relationship check: is descendantId a descendant of ancestorId (or the same node)?
+ */
+public class NodeRelationship {
+    public int ancestorId;
+    public int descendantId;
+
+    public NodeRelationship(int ancestorId, int descendantId) {
+        this.ancestorId = ancestorId;
+        this.descendantId = descendantId;
+    }
+
+    public NodeRelationship() {
+
+    }
+}
@@ -0,0 +1,28 @@
+package com.patricksalami.treeservice.dao;
+
+/**
+ * the progress of the deletion of a subtree; total is the size of the subtree when the deletion was started, so
+ * deleted can end up larger if nodes are added to the subtree while it is being deleted
+ */
+public class SubtreeDeletion {
+    public enum State { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    public int id;
+    public int nodeId;
+    public volatile State state;
+    public int total;
+    public volatile int deleted;
+    public volatile String error;
+
+    public SubtreeDeletion(int id, int nodeId, State state, int total, int deleted) {
+        this.id = id;
+        this.nodeId = nodeId;
+        this.state = state;
+        this.total = total;
+        this.deleted = deleted;
+    }
+
+    public SubtreeDeletion() {
+
+    }
+}
@@ -0,0 +1,23 @@
+package com.patricksalami.treeservice.dao;
+
+/**
+ * aggregates of the subtree below a node: the number of descendants, the depth of the deepest descendant relative to
+ * the node, and the number of leaves (a node without children is a leaf of its own subtree)
+ */
+public class SubtreeStats {
+    public int nodeId;
+    public int descendants;
+    public int maxDepth;
+    public int leaves;
+
+    public SubtreeStats(int nodeId, int descendants, int maxDepth, int leaves) {
+        this.nodeId = nodeId;
+        this.descendants = descendants;
+        this.maxDepth = maxDepth;
+        this.leaves = leaves;
+    }
+
+    public SubtreeStats() {
+
+    }
+}
@@ -0,0 +1,34 @@
+package com.patricksalami.treeservice.events;
+
+/**
+ * published by the NodeService whenever a node (and with it, its subtree) is moved to a new parent
+ */
+public class NodeMovedEvent {
+    private final int nodeId;
+    private final int oldParentId;
+    private final int newParentId;
+    private final int rootId;
+
+    public NodeMovedEvent(int nodeId, int oldParentId, int newParentId, int rootId) {
+        this.nodeId = nodeId;
+        this.oldParentId = oldParentId;
+        this.newParentId = newParentId;
+        this.rootId = rootId;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getOldParentId() {
+        return oldParentId;
+    }
+
+    public int getNewParentId() {
+        return newParentId;
+    }
+
+    public int getRootId() {
+        return rootId;
+    }
+}
@@ -0,0 +1,21 @@
+package com.patricksalami.treeservice.events;
+
+import com.patricksalami.treeservice.dao.Node;
+
+import java.util.List;
+
+/**
+ * published by the NodeService whenever one or more nodes are created; the nodes are ordered so that every parent
+ * comes before its children
+ */
+public class NodesCreatedEvent {
+    private final List<Node> nodes;
+
+    public NodesCreatedEvent(List<Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,21 @@
+package com.patricksalami.treeservice.events;
+
+import com.patricksalami.treeservice.dao.Node;
+
+import java.util.List;
+
+/**
+ * published by the NodeService whenever a batch of nodes has been deleted; the nodes are ordered so that every child
+ * comes before its parent, and only their ids and parents are set
+ */
+public class NodesDeletedEvent {
+    private final List<Node> nodes;
+
+    public NodesDeletedEvent(List<Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+}
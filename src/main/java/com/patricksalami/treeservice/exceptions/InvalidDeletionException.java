@@ -0,0 +1,12 @@
+package com.patricksalami.treeservice.exceptions;
+
+public class InvalidDeletionException extends RuntimeException {
+    private int deletionId;
+    public InvalidDeletionException(int deletionId) {
+        this.deletionId = deletionId;
+    }
+
+    public int getDeletionId() {
+        return deletionId;
+    }
+}
@@ -0,0 +1,14 @@
+package com.patricksalami.treeservice.exceptions;
+
+public class InvalidParameterException extends RuntimeException {
+
+    private String parameterName;
+
+    public InvalidParameterException(String parameterName) {
+        this.parameterName = parameterName;
+    }
+
+    public String getParameterName() {
+        return this.parameterName;
+    }
+}
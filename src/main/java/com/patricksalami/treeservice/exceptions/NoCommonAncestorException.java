@@ -0,0 +1,18 @@
+package com.patricksalami.treeservice.exceptions;
+
+public class NoCommonAncestorException extends RuntimeException {
+    private int nodeId;
+    private int otherNodeId;
+    public NoCommonAncestorException(int nodeId, int otherNodeId) {
+        this.nodeId = nodeId;
+        this.otherNodeId = otherNodeId;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getOtherNodeId() {
+        return otherNodeId;
+    }
+}
@@ -0,0 +1,14 @@
+package com.patricksalami.treeservice.exceptions;
+
+public class TooManyDeferredNodesException extends RuntimeException {
+
+    private int limit;
+
+    public TooManyDeferredNodesException(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+}
@@ -0,0 +1,4 @@
+package com.patricksalami.treeservice.exceptions;
+
+public class WriteTimeoutException extends RuntimeException {
+}
@@ -0,0 +1,257 @@
+package com.patricksalami.treeservice.index;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An optional read index that stores the position of every node in a depth-first walk of its tree in the nodes
+ * table: the walk gives each node a pre number when it enters the node and a post number when it leaves it, so the
+ * descendants of a node are exactly the nodes of the same tree whose pre number lies between the node's pre and post
+ * numbers, and the whole subtree can be read with a single range scan over interval_idx(root, pre) (see
+ * NodeRepository.streamDescendantsByInterval) instead of the closure table.
+ *
+ * The numbers are not consecutive but leave gaps, so that most writes only have to number the new or moved nodes:
+ * new nodes and moved subtrees are placed into the gap between the pre number of their new parent and the pre
+ * number of its first child (or the parent's post number if it has no children), taking at most half of it. Only when
+ * that gap is too small is the whole tree numbered again, with the numbers spread evenly over the whole range of a
+ * long. Deleting nodes only leaves holes in the numbering.
+ *
+ * The closure table is still maintained as before, and is still used for everything but unpaged descendant streams
+ * of whole subtrees (without minDepth or maxDepth).
+ * The index is enabled with treeservice.interval-index.enabled=true; at startup, the trees whose numbers are missing
+ * or do not match the topology (e.g. because they were written while the index was disabled) are numbered again,
+ * and like the topology index, it assumes that the tree is only modified through this service. It relies on the tree
+ * locks (treeservice.tree-locks.enabled), so that two writes never number nodes into the same gap at the same time,
+ * and refuses to start without them.
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.interval-index.enabled", havingValue = "true")
+public class IntervalIndex {
+
+    /**
+     * the distance between the numbers of new nodes, as long as the gap they are placed into is large enough
+     */
+    private static final long SPACING = 1L << 24;
+
+    private final Logger logger = LoggerFactory.getLogger(IntervalIndex.class);
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Value("${treeservice.tree-locks.enabled:true}")
+    boolean treeLocksEnabled;
+
+    /**
+     * numbers the trees whose numbers are missing or invalid again, and keeps the numbers of all other trees
+     */
+    @PostConstruct
+    public void rebuild() {
+        if (!treeLocksEnabled) {
+            throw new IllegalStateException("The interval index requires treeservice.tree-locks.enabled=true");
+        }
+        var rootIds = nodeRepository.findRootIdsWithInvalidIntervals();
+        if (rootIds.isEmpty()) {
+            logger.info("The interval index is up to date");
+            return;
+        }
+        var trees = new HashMap<Integer, List<Node>>();
+        nodeRepository.forEachNode(node -> {
+            if (rootIds.contains(node.rootId)) {
+                trees.computeIfAbsent(node.rootId, id -> new ArrayList<>()).add(node);
+            }
+        });
+        var intervals = new ArrayList<long[]>();
+        for (var tree : trees.entrySet()) {
+            number(tree.getKey(), tree.getValue(), intervals);
+        }
+        nodeRepository.updateIntervals(intervals);
+        logger.info("Numbered {} nodes in {} trees for the interval index", intervals.size(), trees.size());
+    }
+
+    /**
+     * numbers a whole tree again
+     *
+     * @param rootId
+     */
+    public void renumber(int rootId) {
+        var intervals = new ArrayList<long[]>();
+        number(rootId, nodeRepository.findTree(rootId), intervals);
+        nodeRepository.updateIntervals(intervals);
+    }
+
+    /**
+     * numbers nodes that have just been created; every parent must come before its children
+     *
+     * @param nodes
+     */
+    public void onNodesCreated(List<Node> nodes) {
+        var sizes = new HashMap<Integer, Integer>(nodes.size() * 2);
+        var children = new HashMap<Integer, List<Integer>>();
+        for (var node : nodes) {
+            sizes.put(node.id, 1);
+        }
+        // the subtrees that were added below existing parents (or as new trees)
+        var tops = new ArrayList<Node>();
+        var parentIds = new HashSet<Integer>();
+        for (var node : nodes) {
+            if (sizes.containsKey(node.parentId)) {
+                children.computeIfAbsent(node.parentId, id -> new ArrayList<>()).add(node.id);
+            } else {
+                tops.add(node);
+                if (node.parentId > 0) {
+                    parentIds.add(node.parentId);
+                }
+            }
+        }
+        for (var i = nodes.size() - 1; i >= 0; i--) {
+            var node = nodes.get(i);
+            if (sizes.containsKey(node.parentId)) {
+                sizes.merge(node.parentId, sizes.get(node.id), Integer::sum);
+            }
+        }
+        var parentIntervals = nodeRepository.findIntervals(parentIds);
+        var intervals = new ArrayList<long[]>(nodes.size());
+        var renumberedRootIds = new HashSet<Integer>();
+        for (var top : tops) {
+            if (top.parentId <= 0) {
+                number(top.id, children, 0, Long.MAX_VALUE / (2L * sizes.get(top.id)), intervals);
+                continue;
+            }
+            var parent = parentIntervals.get(top.parentId);
+            var numbers = parent != null ? allocate(parent, sizes.get(top.id)) : null;
+            if (numbers == null) {
+                renumberedRootIds.add(top.rootId);
+                continue;
+            }
+            number(top.id, children, numbers[0], numbers[1], intervals);
+        }
+        nodeRepository.updateIntervals(intervals);
+        for (var rootId : renumberedRootIds) {
+            renumber(rootId);
+        }
+    }
+
+    /**
+     * numbers a subtree that is about to be moved below a new parent; this has to be called before the root of the
+     * subtree is changed
+     *
+     * @param nodeId
+     * @param rootId the current root of the node
+     * @param newParentId
+     * @return false if the subtree does not fit into the new parent's gap, in which case the new tree has to be
+     * renumbered once the move is done
+     */
+    public boolean onNodeMoving(int nodeId, int rootId, int newParentId) {
+        var found = nodeRepository.findIntervals(List.of(nodeId, newParentId));
+        var node = found.get(nodeId);
+        var parent = found.get(newParentId);
+        if (node == null || parent == null) {
+            return false;
+        }
+        var subtree = nodeRepository.findSubtreeByInterval(rootId, node[0], node[1]);
+        var numbers = allocate(parent, subtree.size());
+        if (numbers == null) {
+            return false;
+        }
+        var children = new HashMap<Integer, List<Integer>>();
+        for (var descendant : subtree) {
+            if (descendant.id != nodeId) {
+                children.computeIfAbsent(descendant.parentId, id -> new ArrayList<>()).add(descendant.id);
+            }
+        }
+        var intervals = new ArrayList<long[]>(subtree.size());
+        number(nodeId, children, numbers[0], numbers[1], intervals);
+        nodeRepository.updateIntervals(intervals);
+        return true;
+    }
+
+    /**
+     * renumbers the given trees, e.g. after moving many subtrees at once
+     *
+     * @param rootIds
+     */
+    public void renumber(Collection<Integer> rootIds) {
+        for (var rootId : rootIds) {
+            renumber(rootId);
+        }
+    }
+
+    /**
+     * reserves the numbers for a subtree of the given size at the end of the gap below a parent, given as
+     * {pre, post, next} (see NodeRepository.findIntervals); the gap of the parent shrinks accordingly
+     *
+     * @return the first number of the subtree and the distance between its numbers, or null if the gap is too small
+     */
+    private static long[] allocate(long[] parent, int size) {
+        var end = Math.min(parent[1], parent[2]);
+        var width = Math.min((end - parent[0] - 1) / 2, 2L * size * SPACING);
+        if (width < 2L * size) {
+            return null;
+        }
+        var start = end - width;
+        parent[2] = start;
+        return new long[]{start, width / (2L * size)};
+    }
+
+    /**
+     * numbers a whole tree, given as the id and parent of each of its nodes, with the numbers spread evenly over
+     * the range of a long
+     */
+    private static void number(int rootId, List<Node> nodes, List<long[]> intervals) {
+        var children = new HashMap<Integer, List<Integer>>();
+        for (var node : nodes) {
+            if (node.parentId > 0 && node.id != rootId) {
+                children.computeIfAbsent(node.parentId, id -> new ArrayList<>()).add(node.id);
+            }
+        }
+        number(rootId, children, 0, Long.MAX_VALUE / (2L * nodes.size()), intervals);
+    }
+
+    /**
+     * numbers a subtree with an iterative depth-first walk, so that very deep trees can not overflow the stack; the
+     * i-th number of the walk is start + i * spacing, and the intervals are added as {id, pre, post}
+     */
+    private static void number(int topId, Map<Integer, List<Integer>> children, long start, long spacing,
+                               List<long[]> intervals) {
+        var next = start;
+        var path = new ArrayList<long[]>();
+        var interval = new long[]{topId, next, 0};
+        next += spacing;
+        path.add(interval);
+        var positions = new ArrayList<Integer>();
+        positions.add(0);
+        while (!path.isEmpty()) {
+            var top = path.size() - 1;
+            var current = path.get(top);
+            var currentChildren = children.get((int) current[0]);
+            var position = positions.get(top);
+            if (currentChildren != null && position < currentChildren.size()) {
+                positions.set(top, position + 1);
+                var child = new long[]{currentChildren.get(position), next, 0};
+                next += spacing;
+                path.add(child);
+                positions.add(0);
+            } else {
+                current[2] = next;
+                next += spacing;
+                intervals.add(current);
+                path.remove(top);
+                positions.remove(top);
+            }
+        }
+    }
+}
@@ -0,0 +1,840 @@
+package com.patricksalami.treeservice.index;
+
+import com.patricksalami.treeservice.dao.CommonAncestor;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesCreatedEvent;
+import com.patricksalami.treeservice.events.NodesDeletedEvent;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.util.IntIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An optional in-memory copy of the tree topology (parent, root and depth of every node) that allows the NodeService
+ * to answer existence checks, single node lookups, ancestry checks and common ancestor lookups without a database
+ * round trip.
+ *
+ * Every node is assigned a slot, and all attributes are kept in primitive int arrays indexed by that slot; children
+ * are kept as doubly linked sibling lists (firstChild / nextSibling / prevSibling), so that a move only has to relink
+ * a single node and then walk its subtree to update depth and root. The index is loaded from the nodes table at
+ * startup.
+ *
+ * The changes of a transaction are applied right before it commits (in the BEFORE_COMMIT phase of the node events),
+ * while the transaction still holds the locks of the trees it changes (see NodeService.lockTrees), so they are applied
+ * in the same order as they are committed, and a write that has locked its trees finds every earlier write to them in
+ * the index. If the commit fails after all, the changes are undone again; readers may therefore see a change a moment
+ * before it is committed, or one that is undone a moment later.
+ *
+ * A change that does not fit the index (e.g. a node whose parent is not known, which can only happen if the nodes
+ * table was modified behind the service's back or without tree locks) makes the index stale: it is reloaded on a
+ * background thread, and until then isCurrent returns false and the NodeService reads from the database instead.
+ * The changes that are made while the index is stale are kept and replayed once the nodes table has been read,
+ * skipping those that do not fit, which the reload has already read from the table.
+ *
+ * The index is enabled with treeservice.topology-index.enabled=true; the nodes table must not be modified by anyone
+ * other than this service while the index is enabled (or reload must be called afterwards).
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.topology-index.enabled", havingValue = "true")
+public class TopologyIndex {
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * the delay before a reload that failed (e.g. because the database was not reachable) is tried again
+     */
+    private static final long RELOAD_RETRY_DELAY = 5000;
+
+    /**
+     * how long isCurrent waits for a rolled back transaction to undo its changes before it gives up
+     */
+    private static final long UNDO_TIMEOUT = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(TopologyIndex.class);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private IntIntHashMap slots;
+    private int size;
+    private int[] ids;
+    private int[] parents;
+    private int[] roots;
+    private int[] depths;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] prevSibling;
+
+    /**
+     * false while the index is being reloaded (or waits to be reloaded) because a change did not fit it
+     */
+    private volatile boolean current;
+
+    /**
+     * the changes whose transactions have not completed yet, in the order in which they were applied
+     */
+    private final List<Change> uncommitted = new ArrayList<>();
+
+    /**
+     * the changes that have to be replayed after the next reload, because they were made while the index was stale
+     */
+    private final List<Change> missed = new ArrayList<>();
+
+    private final ReentrantLock reloading = new ReentrantLock();
+
+    private final AtomicBoolean reloadScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "topology-index-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    void stopReloads() {
+        reloadExecutor.shutdownNow();
+    }
+
+    /**
+     * (re-)loads the whole topology from the nodes table; the depth of each node is computed from the parent links,
+     * so the closure table does not need to be read. The table is read without holding the lock of the index, and
+     * the index is treated as stale while it is read, so readers go to the database in the meantime; the arrays are
+     * then rebuilt under the lock, and the changes made while the table was read are replayed.
+     */
+    @PostConstruct
+    public void reload() {
+        reloading.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                invalidate();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // read in a read-only transaction, so that the driver fetches the table in chunks
+            var table = new NodeTable();
+            var readOnlyTransaction = new TransactionTemplate(transactionManager);
+            readOnlyTransaction.setReadOnly(true);
+            readOnlyTransaction.execute(status -> {
+                nodeRepository.forEachNode(table::add);
+                return null;
+            });
+            lock.writeLock().lock();
+            try {
+                clear();
+                // the parents array temporarily holds the parent id instead of the parent slot
+                for (var i = 0; i < table.size; i++) {
+                    var slot = allocate(table.ids[i], table.roots[i]);
+                    parents[slot] = table.parents[i];
+                }
+                // link each node to its parent once all slots are known, then compute depths from the roots downwards
+                for (var slot = 0; slot < size; slot++) {
+                    var parentId = parents[slot];
+                    parents[slot] = NONE;
+                    var parentSlot = parentId > 0 ? slots.get(parentId) : NONE;
+                    if (parentSlot != NONE) {
+                        link(slot, parentSlot);
+                    }
+                }
+                for (var slot = 0; slot < size; slot++) {
+                    if (parents[slot] == NONE) {
+                        updateSubtree(slot, 0, 0);
+                    }
+                }
+                for (var change : missed) {
+                    apply(change, true);
+                    change.applied = true;
+                }
+                logger.info("Loaded {} nodes into the topology index and replayed {} changes", size, missed.size());
+                missed.clear();
+                current = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            reloading.unlock();
+        }
+    }
+
+    /**
+     * whether the index holds the same topology as the database; false while it is being reloaded, in which case
+     * the database has to be asked instead
+     *
+     * @return
+     */
+    public boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Whether the index holds the latest state of the given trees that the current transaction can see in the
+     * database, so that a write that has locked these trees can be checked against the index. This is not the case if
+     * the index is stale, if the current transaction has changed any tree already (its changes are only applied when
+     * it commits), or if another transaction has changed one of the trees but has not completed yet: since a
+     * transaction's tree locks are released as soon as it ends, that can only be one whose changes are about to be
+     * undone because its commit failed, so we wait a moment for it.
+     *
+     * @param rootIds the roots of the trees that the current transaction has locked
+     * @return
+     */
+    public boolean isCurrent(Collection<Integer> rootIds) {
+        if (TransactionSynchronizationManager.getResource(this) != null) {
+            return false;
+        }
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(UNDO_TIMEOUT);
+        synchronized (uncommitted) {
+            while (current && uncommitted.stream().anyMatch(change -> !Collections.disjoint(change.rootIds, rootIds))) {
+                var timeout = deadline - System.nanoTime();
+                if (timeout <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(uncommitted, timeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return current;
+    }
+
+    public boolean contains(int id) {
+        lock.readLock().lock();
+        try {
+            return slots.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns a single node with the same values as NodeRepository.findById, or null if the node does not exist
+     *
+     * @param id
+     * @return
+     */
+    public Node find(int id) {
+        lock.readLock().lock();
+        try {
+            var slot = slots.get(id);
+            if (slot == NONE) {
+                return null;
+            }
+            var parentId = parents[slot] == NONE ? 0 : ids[parents[slot]];
+            return new Node(id, parentId, roots[slot], depths[slot]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns the given nodes with the same values as NodeRepository.findByIds; nodes that do not exist are left out
+     *
+     * @param nodeIds
+     * @return
+     */
+    public Map<Integer, Node> findNodes(Collection<Integer> nodeIds) {
+        var nodes = new HashMap<Integer, Node>(nodeIds.size() * 2);
+        lock.readLock().lock();
+        try {
+            for (var id : nodeIds) {
+                var slot = slots.get(id);
+                if (slot != NONE) {
+                    var parentId = parents[slot] == NONE ? 0 : ids[parents[slot]];
+                    nodes.put(id, new Node(id, parentId, roots[slot], depths[slot]));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return nodes;
+    }
+
+    /**
+     * returns the distinct roots of the given nodes, like NodeRepository.findRootIds; nodes that are not in the index
+     * are ignored
+     *
+     * @param ids
+     * @return
+     */
+    public Set<Integer> findRootIds(Collection<Integer> ids) {
+        var rootIds = new HashSet<Integer>();
+        lock.readLock().lock();
+        try {
+            for (var id : ids) {
+                var slot = slots.get(id);
+                if (slot != NONE) {
+                    rootIds.add(roots[slot]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return rootIds;
+    }
+
+    /**
+     * walks up the parent links of childId until we either find parentId or reach the depth of parentId; like the
+     * closure table, every node is considered to be a descendant of itself
+     *
+     * @param parentId
+     * @param childId
+     * @return
+     */
+    public boolean isDescendantOf(int parentId, int childId) {
+        lock.readLock().lock();
+        try {
+            return isDescendant(parentId, childId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * checks many relationships at once (see isDescendantOf); all of them are answered from the same state of the
+     * tree
+     *
+     * @param relationships
+     * @return whether each of the relationships exists, in the same order
+     */
+    public List<Boolean> areDescendantsOf(List<NodeRelationship> relationships) {
+        var result = new ArrayList<Boolean>(relationships.size());
+        lock.readLock().lock();
+        try {
+            for (var relationship : relationships) {
+                result.add(isDescendant(relationship.ancestorId, relationship.descendantId));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * finds the lowest common ancestor of two nodes by walking up the parent links of the deeper node until both are
+     * at the same depth, and then walking up from both nodes in lockstep until they meet; returns null if either
+     * node does not exist or the nodes are not part of the same tree
+     *
+     * @param nodeId
+     * @param otherNodeId
+     * @return
+     */
+    public CommonAncestor findCommonAncestor(int nodeId, int otherNodeId) {
+        lock.readLock().lock();
+        try {
+            var slot = slots.get(nodeId);
+            var otherSlot = slots.get(otherNodeId);
+            if (slot == NONE || otherSlot == NONE || roots[slot] != roots[otherSlot]) {
+                return null;
+            }
+            var distance = 0;
+            while (depths[slot] > depths[otherSlot]) {
+                slot = parents[slot];
+                distance++;
+            }
+            while (depths[otherSlot] > depths[slot]) {
+                otherSlot = parents[otherSlot];
+                distance++;
+            }
+            while (slot != otherSlot) {
+                slot = parents[slot];
+                otherSlot = parents[otherSlot];
+                distance += 2;
+            }
+            return new CommonAncestor(nodeId, otherNodeId, ids[slot], distance);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isDescendant(int parentId, int childId) {
+        var ancestorSlot = slots.get(parentId);
+        var slot = slots.get(childId);
+        if (ancestorSlot == NONE || slot == NONE) {
+            return false;
+        }
+        while (slot != NONE && depths[slot] > depths[ancestorSlot]) {
+            slot = parents[slot];
+        }
+        return slot == ancestorSlot;
+    }
+
+    /**
+     * notes that the current transaction has changes that are not applied to the index yet (see isCurrent)
+     *
+     * @param event
+     */
+    @EventListener({NodesCreatedEvent.class, NodeMovedEvent.class, NodesDeletedEvent.class})
+    public void onNodesChanging(Object event) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            transactionChanges();
+        }
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onNodesCreated(NodesCreatedEvent event) {
+        record(new Change(event));
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onNodeMoved(NodeMovedEvent event) {
+        record(new Change(event));
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT)
+    public void onNodesDeleted(NodesDeletedEvent event) {
+        record(new Change(event));
+    }
+
+    /**
+     * applies a change (or keeps it for the next reload while the index is stale) and, if it is part of a
+     * transaction, remembers it until the transaction has completed, so that it can be undone if the commit fails
+     */
+    private void record(Change change) {
+        lock.writeLock().lock();
+        try {
+            if (current && !apply(change, false)) {
+                markStale(change + " does not fit");
+            }
+            if (current) {
+                change.applied = true;
+            } else {
+                missed.add(change);
+            }
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                synchronized (uncommitted) {
+                    uncommitted.add(change);
+                }
+                transactionChanges().add(change);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns the changes of the current transaction, which are completed together once the transaction has
+     * completed
+     */
+    @SuppressWarnings("unchecked")
+    private List<Change> transactionChanges() {
+        var changes = (List<Change>) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            var newChanges = new ArrayList<Change>();
+            TransactionSynchronizationManager.bindResource(this, newChanges);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(TopologyIndex.this);
+                    complete(newChanges, status == STATUS_COMMITTED);
+                }
+            });
+            changes = newChanges;
+        }
+        return changes;
+    }
+
+    /**
+     * forgets the changes of a completed transaction, after undoing them in reverse order if it was rolled back
+     */
+    private void complete(List<Change> changes, boolean committed) {
+        lock.writeLock().lock();
+        try {
+            synchronized (uncommitted) {
+                uncommitted.removeAll(changes);
+                uncommitted.notifyAll();
+            }
+            if (committed) {
+                return;
+            }
+            for (var i = changes.size() - 1; i >= 0; i--) {
+                var change = changes.get(i);
+                // once the index is stale, the reload reads the nodes table without the rolled back changes
+                if (!missed.remove(change) && change.applied && current && !undo(change)) {
+                    markStale(change + " can not be undone");
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * applies a change to the index; must be called with the write lock held
+     *
+     * @param change
+     * @param replay whether the change is replayed after a reload, in which case the parts that do not fit (because
+     *               the reload has already read them from the nodes table) are skipped
+     * @return whether all of the change fit the index
+     */
+    private boolean apply(Change change, boolean replay) {
+        var rootIds = new HashSet<Integer>();
+        var fits = true;
+        if (change.event instanceof NodesCreatedEvent) {
+            var nodes = ((NodesCreatedEvent) change.event).getNodes();
+            fits = create(nodes, replay);
+            for (var node : nodes) {
+                addRootId(rootIds, node.id);
+            }
+        } else if (change.event instanceof NodeMovedEvent) {
+            var event = (NodeMovedEvent) change.event;
+            addRootId(rootIds, event.getNodeId());
+            fits = move(event.getNodeId(), event.getOldParentId(), event.getNewParentId());
+            addRootId(rootIds, event.getNodeId());
+        } else {
+            // children come first, so every node is a leaf by the time it is removed
+            for (var node : ((NodesDeletedEvent) change.event).getNodes()) {
+                addRootId(rootIds, node.id);
+                if (!delete(node)) {
+                    fits = false;
+                    if (!replay) {
+                        break;
+                    }
+                }
+            }
+        }
+        change.rootIds = rootIds;
+        return fits;
+    }
+
+    private void addRootId(Set<Integer> rootIds, int id) {
+        var slot = slots.get(id);
+        if (slot != NONE) {
+            rootIds.add(roots[slot]);
+        }
+    }
+
+    /**
+     * reverts a change that was applied but whose transaction was rolled back; must be called with the write lock
+     * held
+     *
+     * @param change
+     * @return whether the index still held the change
+     */
+    private boolean undo(Change change) {
+        if (change.event instanceof NodesCreatedEvent) {
+            var nodes = ((NodesCreatedEvent) change.event).getNodes();
+            for (var i = nodes.size() - 1; i >= 0; i--) {
+                if (!delete(nodes.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (change.event instanceof NodeMovedEvent) {
+            var event = (NodeMovedEvent) change.event;
+            return move(event.getNodeId(), event.getNewParentId(), event.getOldParentId());
+        }
+        var nodes = new ArrayList<>(((NodesDeletedEvent) change.event).getNodes());
+        Collections.reverse(nodes);
+        return create(nodes, false);
+    }
+
+    /**
+     * adds nodes below parents that are already in the index; the nodes take the root of their parent
+     */
+    private boolean create(List<Node> nodes, boolean replay) {
+        var fits = true;
+        for (var node : nodes) {
+            var parentSlot = node.parentId > 0 ? slots.get(node.parentId) : NONE;
+            if (slots.containsKey(node.id) || (node.parentId > 0 && parentSlot == NONE)) {
+                if (!replay) {
+                    return false;
+                }
+                fits = false;
+                continue;
+            }
+            var slot = allocate(node.id, node.id);
+            if (parentSlot != NONE) {
+                link(slot, parentSlot);
+                depths[slot] = depths[parentSlot] + 1;
+                roots[slot] = roots[parentSlot];
+            }
+        }
+        return fits;
+    }
+
+    /**
+     * moves a node from one parent to another (a parent id of 0 stands for no parent, in which case the node becomes
+     * a root); does nothing unless the node is still below the first parent and the move does not form a cycle
+     */
+    private boolean move(int nodeId, int fromParentId, int toParentId) {
+        var slot = slots.get(nodeId);
+        var fromParentSlot = fromParentId > 0 ? slots.get(fromParentId) : NONE;
+        var toParentSlot = toParentId > 0 ? slots.get(toParentId) : NONE;
+        if (slot == NONE || parents[slot] != fromParentSlot || (fromParentId > 0 && fromParentSlot == NONE)
+                || (toParentId > 0 && (toParentSlot == NONE || isDescendant(nodeId, toParentId)))) {
+            return false;
+        }
+        unlink(slot);
+        if (toParentSlot == NONE) {
+            updateSubtree(slot, 0, nodeId);
+        } else {
+            link(slot, toParentSlot);
+            updateSubtree(slot, depths[toParentSlot] + 1, roots[toParentSlot]);
+        }
+        return true;
+    }
+
+    /**
+     * removes a node that is a leaf below the given parent
+     */
+    private boolean delete(Node node) {
+        var slot = slots.get(node.id);
+        var parentSlot = node.parentId > 0 ? slots.get(node.parentId) : NONE;
+        if (slot == NONE || firstChild[slot] != NONE || parents[slot] != parentSlot) {
+            return false;
+        }
+        remove(slot);
+        return true;
+    }
+
+    /**
+     * makes the index stale and schedules a reload after a change that does not fit it; must be called with the
+     * write lock held
+     */
+    private void markStale(String reason) {
+        logger.warn("Topology index is out of date ({}), reloading it in the background", reason);
+        invalidate();
+        scheduleReload(0);
+    }
+
+    /**
+     * makes the index stale, so that the changes from now on are kept for the next reload, together with those that
+     * were applied but whose transactions have not committed yet; must be called with the write lock held
+     */
+    private void invalidate() {
+        if (!current) {
+            return;
+        }
+        current = false;
+        synchronized (uncommitted) {
+            for (var change : uncommitted) {
+                change.applied = false;
+                missed.add(change);
+            }
+        }
+    }
+
+    private void scheduleReload(long delay) {
+        if (reloadScheduled.compareAndSet(false, true)) {
+            reloadExecutor.schedule(() -> {
+                reloadScheduled.set(false);
+                try {
+                    reload();
+                } catch (RuntimeException e) {
+                    logger.error("Reloading the topology index failed, retrying", e);
+                    scheduleReload(RELOAD_RETRY_DELAY);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void clear() {
+        slots = new IntIntHashMap(INITIAL_CAPACITY, NONE);
+        size = 0;
+        ids = new int[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        roots = new int[INITIAL_CAPACITY];
+        depths = new int[INITIAL_CAPACITY];
+        firstChild = new int[INITIAL_CAPACITY];
+        nextSibling = new int[INITIAL_CAPACITY];
+        prevSibling = new int[INITIAL_CAPACITY];
+    }
+
+    private int allocate(int id, int rootId) {
+        if (size == ids.length) {
+            var capacity = size << 1;
+            ids = Arrays.copyOf(ids, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            roots = Arrays.copyOf(roots, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            prevSibling = Arrays.copyOf(prevSibling, capacity);
+        }
+        var slot = size++;
+        ids[slot] = id;
+        parents[slot] = NONE;
+        roots[slot] = rootId;
+        depths[slot] = 0;
+        firstChild[slot] = NONE;
+        nextSibling[slot] = NONE;
+        prevSibling[slot] = NONE;
+        slots.put(id, slot);
+        return slot;
+    }
+
+    /**
+     * removes a leaf and moves the node in the last slot into the freed slot, so that the slots stay contiguous
+     */
+    private void remove(int slot) {
+        unlink(slot);
+        slots.remove(ids[slot]);
+        var last = --size;
+        if (slot == last) {
+            return;
+        }
+        ids[slot] = ids[last];
+        parents[slot] = parents[last];
+        roots[slot] = roots[last];
+        depths[slot] = depths[last];
+        firstChild[slot] = firstChild[last];
+        nextSibling[slot] = nextSibling[last];
+        prevSibling[slot] = prevSibling[last];
+        slots.put(ids[slot], slot);
+        if (prevSibling[slot] != NONE) {
+            nextSibling[prevSibling[slot]] = slot;
+        } else if (parents[slot] != NONE) {
+            firstChild[parents[slot]] = slot;
+        }
+        if (nextSibling[slot] != NONE) {
+            prevSibling[nextSibling[slot]] = slot;
+        }
+        for (var child = firstChild[slot]; child != NONE; child = nextSibling[child]) {
+            parents[child] = slot;
+        }
+    }
+
+    private void link(int slot, int parentSlot) {
+        parents[slot] = parentSlot;
+        prevSibling[slot] = NONE;
+        nextSibling[slot] = firstChild[parentSlot];
+        if (firstChild[parentSlot] != NONE) {
+            prevSibling[firstChild[parentSlot]] = slot;
+        }
+        firstChild[parentSlot] = slot;
+    }
+
+    private void unlink(int slot) {
+        var parentSlot = parents[slot];
+        if (parentSlot == NONE) {
+            return;
+        }
+        if (prevSibling[slot] != NONE) {
+            nextSibling[prevSibling[slot]] = nextSibling[slot];
+        } else {
+            firstChild[parentSlot] = nextSibling[slot];
+        }
+        if (nextSibling[slot] != NONE) {
+            prevSibling[nextSibling[slot]] = prevSibling[slot];
+        }
+        parents[slot] = NONE;
+        nextSibling[slot] = NONE;
+        prevSibling[slot] = NONE;
+    }
+
+    /**
+     * sets the depth (and, unless rootId is 0, the root) of a node and all of its descendants with an iterative
+     * depth-first walk, so that very deep trees can not overflow the stack
+     */
+    private void updateSubtree(int slot, int depth, int rootId) {
+        var stack = new int[64];
+        var top = 0;
+        depths[slot] = depth;
+        if (rootId != 0) {
+            roots[slot] = rootId;
+        }
+        stack[top++] = slot;
+        while (top > 0) {
+            var current = stack[--top];
+            for (var child = firstChild[current]; child != NONE; child = nextSibling[child]) {
+                depths[child] = depths[current] + 1;
+                if (rootId != 0) {
+                    roots[child] = rootId;
+                }
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top << 1);
+                }
+                stack[top++] = child;
+            }
+        }
+    }
+
+    /**
+     * a node event together with whether (and where) it has been applied to the index
+     */
+    private static class Change {
+        private final Object event;
+        private boolean applied;
+
+        /**
+         * the trees that the change touches in the index; replaced as a whole, since isCurrent reads it without
+         * holding the lock of the index
+         */
+        private volatile Set<Integer> rootIds = Set.of();
+
+        private Change(Object event) {
+            this.event = event;
+        }
+
+        @Override
+        public String toString() {
+            if (event instanceof NodeMovedEvent) {
+                return "move of node " + ((NodeMovedEvent) event).getNodeId();
+            }
+            var nodes = event instanceof NodesCreatedEvent
+                    ? ((NodesCreatedEvent) event).getNodes() : ((NodesDeletedEvent) event).getNodes();
+            return (event instanceof NodesCreatedEvent ? "creation" : "deletion") + " of " + nodes.size()
+                    + " nodes starting with node " + nodes.get(0).id;
+        }
+    }
+
+    /**
+     * the rows of the nodes table as read by a reload, before they are linked into the index
+     */
+    private static class NodeTable {
+        private int size;
+        private int[] ids = new int[INITIAL_CAPACITY];
+        private int[] parents = new int[INITIAL_CAPACITY];
+        private int[] roots = new int[INITIAL_CAPACITY];
+
+        private void add(Node node) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size << 1);
+                parents = Arrays.copyOf(parents, size << 1);
+                roots = Arrays.copyOf(roots, size << 1);
+            }
+            ids[size] = node.id;
+            parents[size] = node.parentId;
+            roots[size++] = node.rootId;
+        }
+    }
+}
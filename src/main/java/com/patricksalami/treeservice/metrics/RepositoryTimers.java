@@ -0,0 +1,73 @@
+package com.patricksalami.treeservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.aop.framework.AbstractAdvisingBeanPostProcessor;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Repository;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every call of a public method of a @Repository bean (i.e. NodeRepository) as treeservice.repository, tagged
+ * with the class, the method and whether it threw an exception, so it can be told from the outside which queries a
+ * slow request spent its time in (together with hikaricp.connections.acquire, the time spent waiting for a connection).
+ *
+ * The advice is added to the proxy that Spring already creates for repositories (for the exception translation), or
+ * a proxy is created; either way, only calls from other beans are timed, calls within the repository count towards
+ * the calling method. The timers are looked up once per method, so a call only adds two clock reads and the update
+ * of the timer.
+ */
+@Component
+public class RepositoryTimers extends AbstractAdvisingBeanPostProcessor {
+
+    private final Map<Method, Timer[]> timers = new ConcurrentHashMap<>();
+
+    /**
+     * the registry is looked up on the first call; post processors are created before all other beans, and
+     * depending on the registry here would create it before it is configured
+     */
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    public RepositoryTimers(ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.advisor = new DefaultPointcutAdvisor(new AnnotationMatchingPointcut(Repository.class, true),
+                (MethodInterceptor) invocation -> {
+                    var methodTimers = timers.computeIfAbsent(invocation.getMethod(), this::createTimers);
+                    var start = System.nanoTime();
+                    try {
+                        var result = invocation.proceed();
+                        methodTimers[0].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        return result;
+                    } catch (Throwable e) {
+                        // created on demand, so that there is no empty series for every method that never fails
+                        if (methodTimers[1] == null) {
+                            methodTimers[1] = createTimer(invocation.getMethod(), "exception");
+                        }
+                        methodTimers[1].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        throw e;
+                    }
+                });
+        this.beforeExistingAdvisors = true;
+    }
+
+    private Timer[] createTimers(Method method) {
+        return new Timer[]{createTimer(method, "none"), null};
+    }
+
+    private Timer createTimer(Method method, String exception) {
+        return Timer.builder("treeservice.repository")
+                .description("time spent in a repository method")
+                .tag("class", method.getDeclaringClass().getSimpleName())
+                .tag("method", method.getName())
+                .tag("exception", exception)
+                .register(meterRegistry.getObject());
+    }
+}
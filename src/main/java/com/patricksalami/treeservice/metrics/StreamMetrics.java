@@ -0,0 +1,134 @@
+package com.patricksalami.treeservice.metrics;
+
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the descendant streams of NodeController, per output format: the total duration from the start of the
+ * request (treeservice.stream.duration), the time until the first bytes are handed to the servlet container
+ * (treeservice.stream.first-byte), and the size in bytes and rows (treeservice.stream.bytes/rows).
+ *
+ * The meters are created up front, and the bytes are counted by a thin wrapper around the response stream that only
+ * sees the buffers of the writers, not single values, so the streaming path only pays for a counter increment per
+ * buffer and a few meter updates per request.
+ */
+@Component
+public class StreamMetrics {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final Map<DescendantsFormat, Meters> meters = new EnumMap<>(DescendantsFormat.class);
+
+    private static class Meters {
+        Timer duration;
+        Timer firstByte;
+        DistributionSummary bytes;
+        DistributionSummary rows;
+    }
+
+    @PostConstruct
+    void registerMeters() {
+        for (var format : DescendantsFormat.values()) {
+            var formatMeters = new Meters();
+            var tag = format.name().toLowerCase();
+            formatMeters.duration = Timer.builder("treeservice.stream.duration")
+                    .description("time from the start of the request until the stream is complete")
+                    .tag("format", tag)
+                    .register(meterRegistry);
+            formatMeters.firstByte = Timer.builder("treeservice.stream.first-byte")
+                    .description("time from the start of the request until the first bytes are written")
+                    .tag("format", tag)
+                    .register(meterRegistry);
+            formatMeters.bytes = DistributionSummary.builder("treeservice.stream.bytes")
+                    .baseUnit("bytes")
+                    .tag("format", tag)
+                    .maximumExpectedValue(10_000_000_000L)
+                    .register(meterRegistry);
+            formatMeters.rows = DistributionSummary.builder("treeservice.stream.rows")
+                    .baseUnit("rows")
+                    .tag("format", tag)
+                    .maximumExpectedValue(100_000_000L)
+                    .register(meterRegistry);
+            meters.put(format, formatMeters);
+        }
+    }
+
+    /**
+     * @param format
+     * @param startNanos the System.nanoTime() at the start of the request
+     * @param outputStream
+     * @return a stream that counts the bytes written to outputStream; the stream is recorded when finish is called
+     */
+    public Recording start(DescendantsFormat format, long startNanos, OutputStream outputStream) {
+        return new Recording(meters.get(format), startNanos, outputStream);
+    }
+
+    public static class Recording extends OutputStream {
+
+        private final Meters meters;
+        private final long startNanos;
+        private final OutputStream outputStream;
+        private long bytes;
+        private boolean written;
+
+        private Recording(Meters meters, long startNanos, OutputStream outputStream) {
+            this.meters = meters;
+            this.startNanos = startNanos;
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            firstWrite();
+            outputStream.write(b);
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            firstWrite();
+            outputStream.write(b, off, len);
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+        }
+
+        /**
+         * records the stream once all rows have been written
+         *
+         * @param rows
+         */
+        public void finish(int rows) {
+            meters.duration.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            meters.bytes.record(bytes);
+            meters.rows.record(rows);
+        }
+
+        private void firstWrite() {
+            if (!written) {
+                written = true;
+                meters.firstByte.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -1,32 +1,217 @@
 package com.patricksalami.treeservice.repository;
 
 
+import com.patricksalami.treeservice.dao.CommonAncestor;
+import com.patricksalami.treeservice.dao.DescendantsCursor;
 import com.patricksalami.treeservice.dao.Node;
-import com.patricksalami.treeservice.util.JsonResultSetExtractor;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.dao.SubtreeStats;
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import com.patricksalami.treeservice.util.DescendantsResultSetExtractor;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
 import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @Repository
 public class NodeRepository {
 
     private final Logger logger = LoggerFactory.getLogger(NodeRepository.class);
 
+    /**
+     * number of rows sent to the database per JDBC batch, and number of ids per IN (...) lookup
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * the first key of the advisory locks on trees (the second one is the root id), so that they can not clash with
+     * advisory locks that are taken for other purposes
+     */
+    private static final int TREE_LOCK_NAMESPACE = 0x74726565;
+
+    private static final String LOCK_TREES_SQL = "SELECT count(pg_advisory_xact_lock(:namespace, r.id)) " +
+            "FROM (SELECT v.id FROM (VALUES :rootIds) v(id) ORDER BY v.id) r";
+
+    private static final String TRY_LOCK_TREES_SQL = "SELECT bool_and(pg_try_advisory_xact_lock(:namespace, r.id)) " +
+            "FROM (SELECT v.id FROM (VALUES :rootIds) v(id) ORDER BY v.id) r";
+
+    private static final String UPDATE_NODES_TABLE_ENTRY_SQL = "UPDATE nodes  " +
+            "SET parent = :parentId, " +
+            "root = :rootId " +
+            "WHERE id = :nodeId";
+
+    private static final String UPDATE_CHILDREN_TABLE_ENTRY_SQL = "UPDATE children " +
+            "SET parent = :parentId, " +
+            "root = :rootId " +
+            "WHERE ancestor = :nodeId AND descendant = :nodeId AND depth = 0";
+
+    private static final String ADD_NODE_TO_PARENT_SQL =
+            "INSERT into children(ancestor, descendant, parent, root, depth, height) " +
+            "SELECT p.ancestor, c.descendant, c.parent, p.root, p.depth+c.depth+1, c.height " +
+            "FROM children p, children c " +
+            "WHERE p.descendant=:parentId and c.ancestor=:childId";
+
+    private static final String UPDATE_SUBTREE_SQL = "UPDATE children " +
+            "SET height = height + :delta, " +
+            "root = :rootId " +
+            "WHERE descendant IN (SELECT descendant FROM children WHERE ancestor = :nodeId)";
+
+    private static final String UPDATE_SUBTREE_ROOT_SQL = "UPDATE nodes " +
+            "SET root = :rootId " +
+            "WHERE id IN (SELECT descendant FROM children WHERE ancestor = :nodeId)";
+
+    private static final String REMOVE_NODES_FROM_PARENTS_SQL = "DELETE FROM children " +
+            "USING children a, children d " +
+            "WHERE a.descendant IN (:ids) AND a.depth > 0 AND d.ancestor = a.descendant " +
+            "AND children.ancestor = a.ancestor AND children.descendant = d.descendant";
+
+    private static final String ADD_TO_SUBTREE_STATS_SQL = "UPDATE nodes n " +
+            "SET descendants = n.descendants + :nodes, " +
+            "leaves = n.leaves + :leaves - CASE WHEN p.descendants = 0 THEN 1 ELSE 0 END, " +
+            "max_depth = greatest(n.max_depth, c.depth + :depth) " +
+            "FROM children c, nodes p " +
+            "WHERE c.descendant = :parentId AND n.id = c.ancestor AND p.id = :parentId";
+
+    private static final String ADD_MANY_TO_SUBTREE_STATS_SQL = "UPDATE nodes n " +
+            "SET descendants = n.descendants + a.nodes, " +
+            "leaves = n.leaves + a.leaves, " +
+            "max_depth = greatest(n.max_depth, a.depth) " +
+            "FROM (SELECT c.ancestor, sum(v.nodes) AS nodes, " +
+            "  sum(v.leaves - CASE WHEN p.descendants = 0 THEN 1 ELSE 0 END) AS leaves, " +
+            "  max(c.depth + v.depth) AS depth " +
+            "  FROM (VALUES :additions) v(parent, nodes, leaves, depth) " +
+            "  JOIN nodes p ON p.id = v.parent " +
+            "  JOIN children c ON c.descendant = v.parent GROUP BY c.ancestor) a " +
+            "WHERE n.id = a.ancestor";
+
+    private static final String REMOVE_FROM_SUBTREE_STATS_SQL = "UPDATE nodes n " +
+            "SET descendants = n.descendants - :nodes, " +
+            "leaves = n.leaves - :leaves + CASE WHEN p.descendants = :nodes THEN 1 ELSE 0 END, " +
+            "max_depth = (SELECT max(m.depth) FROM children m WHERE m.ancestor = n.id) " +
+            "FROM children c, nodes p " +
+            "WHERE c.descendant = :parentId AND n.id = c.ancestor AND p.id = :parentId";
+
+    private static final String REMOVE_MANY_FROM_SUBTREE_STATS_SQL = "UPDATE nodes n " +
+            "SET descendants = n.descendants - r.nodes, " +
+            "leaves = n.leaves - r.leaves, " +
+            "max_depth = (SELECT max(m.depth) FROM children m WHERE m.ancestor = n.id) " +
+            "FROM (SELECT c.ancestor, sum(v.nodes) AS nodes, " +
+            "  sum(v.leaves - CASE WHEN p.descendants = v.nodes THEN 1 ELSE 0 END) AS leaves " +
+            "  FROM (VALUES :removals) v(parent, nodes, leaves) " +
+            "  JOIN nodes p ON p.id = v.parent " +
+            "  JOIN children c ON c.descendant = v.parent GROUP BY c.ancestor) r " +
+            "WHERE n.id = r.ancestor";
+
+    private static final String RECOMPUTE_SUBTREE_STATS_SQL = "UPDATE nodes n " +
+            "SET descendants = s.descendants, " +
+            "max_depth = s.max_depth, " +
+            "leaves = s.leaves " +
+            "FROM (SELECT c.ancestor AS id, count(*) - 1 AS descendants, max(c.depth) AS max_depth, " +
+            "  count(*) FILTER (WHERE NOT EXISTS (" +
+            "    SELECT 1 FROM children k WHERE k.ancestor = c.descendant AND k.depth = 1)) AS leaves " +
+            "  FROM children c WHERE c.ancestor IN (:ids) GROUP BY c.ancestor) s " +
+            "WHERE n.id = s.id " +
+            "AND (n.descendants, n.max_depth, n.leaves) IS DISTINCT FROM (s.descendants, s.max_depth, s.leaves)";
+
+    private static final String UPDATE_SUBTREE_STATS_FROM_CHILDREN_SQL = "UPDATE nodes n " +
+            "SET descendants = s.descendants, " +
+            "max_depth = s.max_depth, " +
+            "leaves = s.leaves " +
+            "FROM (SELECT a.id, coalesce(sum(k.descendants + 1), 0) AS descendants, " +
+            "  coalesce(max(k.max_depth + 1), 0) AS max_depth, coalesce(sum(k.leaves), 1) AS leaves " +
+            "  FROM nodes a " +
+            "  LEFT JOIN children c ON c.ancestor = a.id AND c.depth = 1 " +
+            "  LEFT JOIN nodes k ON k.id = c.descendant " +
+            "  WHERE a.id IN (:ids) GROUP BY a.id) s " +
+            "WHERE n.id = s.id";
+
+    private static final String FIND_DELETION_BATCH_SQL = "SELECT n.id, coalesce(n.parent, 0), n.descendants, " +
+            "n.leaves " +
+            "FROM children c JOIN nodes n ON n.id = c.descendant " +
+            "WHERE c.ancestor = :nodeId " +
+            "ORDER BY c.depth DESC LIMIT :limit " +
+            "FOR UPDATE OF n";
+
     @Autowired
     private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
     /**
-     * returns a single Node object based on its id; the node height is determined by checking the entry in the closure
-     * table that links the node's root node to the node and referencing the depth column of that record
+     * number of rows the JDBC driver fetches at a time when streaming descendants
+     */
+    @Value("${treeservice.stream.fetch-size:1000}")
+    private int streamFetchSize;
+
+    /**
+     * used for the streaming queries only; unless a fetch size is set, the Postgres driver reads the whole result
+     * set into memory before returning the first row
+     */
+    private NamedParameterJdbcTemplate streamingJdbcTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * the number of closure table entries that are inserted (add), deleted (remove) or rewritten (subtree) when a
+     * subtree is attached to or detached from its ancestors, published as treeservice.closure.rows; one value is
+     * recorded per call, or per moved node for batch moves
+     */
+    private DistributionSummary addedEntries;
+    private DistributionSummary removedEntries;
+    private DistributionSummary updatedEntries;
+
+    @PostConstruct
+    void createStreamingJdbcTemplate() {
+        var jdbcTemplate = new JdbcTemplate(namedParameterJdbcTemplate.getJdbcTemplate().getDataSource());
+        jdbcTemplate.setFetchSize(streamFetchSize);
+        streamingJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    @PostConstruct
+    void registerMeters() {
+        addedEntries = closureRowsSummary("add");
+        removedEntries = closureRowsSummary("remove");
+        updatedEntries = closureRowsSummary("subtree");
+    }
+
+    private DistributionSummary closureRowsSummary(String update) {
+        return DistributionSummary.builder("treeservice.closure.rows")
+                .description("closure table entries affected by a single update")
+                .baseUnit("rows")
+                .tag("update", update)
+                .maximumExpectedValue(100_000_000L)
+                .register(meterRegistry);
+    }
+
+    /**
+     * returns a single Node object based on its id; the node height is kept in the entry of the closure table that
+     * links the node to itself, so we only need two primary key lookups
      *
      * @param id
      * @return
@@ -35,9 +220,9 @@ public class NodeRepository {
     public Node findById(int id) throws RuntimeException {
         var parameterSource = new MapSqlParameterSource()
                 .addValue("nodeId", id);
-        var sql = "SELECT id, n.parent as parentId, n.root as rootId, d.depth as height " +
+        var sql = "SELECT id, n.parent as parentId, n.root as rootId, s.height as height " +
                 "FROM nodes n " +
-                "LEFT JOIN children d ON d.ancestor = n.root AND d.descendant = :nodeId " +
+                "LEFT JOIN children s ON s.ancestor = :nodeId AND s.descendant = :nodeId " +
                 "WHERE id = :nodeId";
         try {
             return namedParameterJdbcTemplate.queryForObject(sql, parameterSource,
@@ -51,27 +236,181 @@ public class NodeRepository {
     }
 
     /**
-     * Streams all descendants of a given node to the provided OutputStream in JSON format using a fast and simple
-     * SELECT query;
+     * passes every row of the main nodes table to the given consumer; the height of the nodes is not read, since
+     * this is only used to build an in-memory copy of the topology. The rows are fetched in chunks of
+     * treeservice.stream.fetch-size, which requires a transaction.
+     *
+     * @param consumer
+     * @throws RuntimeException
+     */
+    public void forEachNode(Consumer<Node> consumer) throws RuntimeException {
+        var sql = "SELECT id, parent, root FROM nodes";
+        streamingJdbcTemplate.getJdbcOperations().query(sql, resultSet -> {
+            consumer.accept(new Node(resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3)));
+        });
+    }
+
+    /**
+     * passes the id of the node and of each of its ancestors to the given consumer
+     *
+     * @param nodeId
+     * @param consumer
+     * @throws RuntimeException
+     */
+    public void forEachAncestorId(int nodeId, IntConsumer consumer) throws RuntimeException {
+        var sql = "SELECT ancestor FROM children WHERE descendant = :nodeId";
+        var parameterSource = new MapSqlParameterSource().addValue("nodeId", nodeId);
+        namedParameterJdbcTemplate.query(sql, parameterSource, resultSet -> {
+            consumer.accept(resultSet.getInt(1));
+        });
+    }
+
+    /**
+     * passes the id of each of the given nodes and of each of their ancestors to the given consumer, once per id
+     *
+     * @param nodeIds
+     * @param consumer
+     * @throws RuntimeException
+     */
+    public void forEachAncestorId(Collection<Integer> nodeIds, IntConsumer consumer) throws RuntimeException {
+        var sql = "SELECT DISTINCT ancestor FROM children WHERE descendant IN (:ids)";
+        var ancestorIds = new HashSet<Integer>();
+        forEachChunk(nodeIds, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    ancestorIds.add(resultSet.getInt(1));
+                }));
+        ancestorIds.forEach(consumer::accept);
+    }
+
+    /**
+     * passes the id of the node and of each of its descendants to the given consumer
+     *
+     * @param nodeId
+     * @param consumer
+     * @throws RuntimeException
+     */
+    public void forEachSubtreeId(int nodeId, IntConsumer consumer) throws RuntimeException {
+        var sql = "SELECT descendant FROM children WHERE ancestor = :nodeId";
+        var parameterSource = new MapSqlParameterSource().addValue("nodeId", nodeId);
+        namedParameterJdbcTemplate.query(sql, parameterSource, resultSet -> {
+            consumer.accept(resultSet.getInt(1));
+        });
+    }
+
+    /**
+     * Streams all descendants of a given node to the provided OutputStream in the requested format (JSON by default)
+     * using a fast and simple SELECT query;
      * in order to support a large number of nodes in the subtree, we do not represent the nodes in memory and
      * instead construct the JSON output on the fly as we are streaming rows from the db. Therefore we opt not to
      * use JPA with this Repository.
      *
+     * Every entry of the closure table carries the (absolute) height of its descendant, so the result is a single
+     * range scan over the closure table without any joins.
+     *
+     * Rows are fetched from the database streamFetchSize rows at a time, so the memory used does not depend on the
+     * size of the subtree; the driver can only do this within a transaction (with autocommit disabled), so this must
+     * be called from a transactional method.
+     *
+     * Only descendants whose depth relative to the node is between minDepth and maxDepth (inclusive) are returned,
+     * e.g. minDepth = maxDepth = 1 returns only the direct children. Because the depth is the second column of the
+     * pdc_idx(ancestor, depth, descendant) index, restricting the depth does not read any rows outside of the range.
+     *
      * @param id
+     * @param minDepth
+     * @param maxDepth
+     * @param format
      * @param outputStream
+     * @return the number of descendants that were written
      * @throws RuntimeException
      */
-    public void streamDescendantsById(int id, OutputStream outputStream) throws RuntimeException {
+    public int streamDescendantsById(int id, int minDepth, int maxDepth, DescendantsFormat format,
+                                      OutputStream outputStream) throws RuntimeException {
         try {
             var parameterSource = new MapSqlParameterSource()
-                    .addValue("nodeId", id);
+                    .addValue("nodeId", id)
+                    .addValue("minDepth", minDepth)
+                    .addValue("maxDepth", maxDepth);
+            var sql = "SELECT c.descendant as \"id\", c.parent as \"parentId\", c.root as \"rootId\", " +
+                    "c.height as height " +
+                    "FROM " +
+                    "children c " +
+                    "WHERE c.ancestor = :nodeId AND c.depth BETWEEN :minDepth AND :maxDepth;";
+            return streamingJdbcTemplate.query(sql, parameterSource,
+                    new DescendantsResultSetExtractor(outputStream, format));
+
+        } catch (DataAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Streams a single page of descendants of a given node, in (depth, descendant) order, starting right after the
+     * position of the given cursor and restricted to the depth range between minDepth and maxDepth. The keyset
+     * condition on (depth, descendant) matches the pdc_idx index, so every page is a single index range scan of at
+     * most limit + 1 rows, no matter how far into the subtree it starts.
+     *
+     * @param cursor
+     * @param minDepth
+     * @param maxDepth
+     * @param limit
+     * @param format
+     * @param outputStream
+     * @return the number of descendants that were written
+     * @throws RuntimeException
+     */
+    public int streamDescendantsPage(DescendantsCursor cursor, int minDepth, int maxDepth, int limit,
+                                      DescendantsFormat format, OutputStream outputStream) throws RuntimeException {
+        try {
+            var parameterSource = new MapSqlParameterSource()
+                    .addValue("nodeId", cursor.nodeId)
+                    .addValue("depth", cursor.depth)
+                    .addValue("descendant", cursor.descendant)
+                    .addValue("minDepth", minDepth)
+                    .addValue("maxDepth", maxDepth)
+                    .addValue("limit", limit + 1);
             var sql = "SELECT c.descendant as \"id\", c.parent as \"parentId\", c.root as \"rootId\", " +
-                    "d.depth as height " +
+                    "c.height as height, c.depth " +
+                    "FROM " +
+                    "children c " +
+                    "WHERE c.ancestor = :nodeId AND c.depth BETWEEN :minDepth AND :maxDepth " +
+                    "AND (c.depth, c.descendant) > (:depth, :descendant) " +
+                    "ORDER BY c.depth, c.descendant " +
+                    "LIMIT :limit";
+            return streamingJdbcTemplate.query(sql, parameterSource,
+                    new DescendantsResultSetExtractor(outputStream, format, cursor.nodeId, limit));
+
+        } catch (DataAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Streams the ancestors of a node to the provided OutputStream in the requested format, starting with the parent
+     * and ending with the root. The entries that link the node to its ancestors are found with a single range scan
+     * of the cpd_idx(descendant, ancestor, depth) index, and they already contain everything we need: the root of the
+     * ancestor is the root of the entry, its height is the height of the node minus the depth, and its parent is the
+     * next ancestor in depth order. Since the number of ancestors is bounded by the height of the tree, the rows are
+     * fetched all at once.
+     *
+     * @param id
+     * @param format
+     * @param outputStream
+     * @throws RuntimeException
+     */
+    public void streamAncestorsById(int id, DescendantsFormat format, OutputStream outputStream)
+            throws RuntimeException {
+        try {
+            var parameterSource = new MapSqlParameterSource()
+                    .addValue("nodeId", id);
+            var sql = "SELECT c.ancestor as \"id\", " +
+                    "coalesce(lead(c.ancestor) OVER (ORDER BY c.depth), 0) as \"parentId\", " +
+                    "c.root as \"rootId\", c.height - c.depth as height " +
                     "FROM " +
                     "children c " +
-                    "LEFT JOIN children d ON d.ancestor = c.root AND d.descendant = c.descendant " +
-                    "WHERE c.ancestor = :nodeId AND c.descendant != :nodeId;";
-            namedParameterJdbcTemplate.query(sql, parameterSource, new JsonResultSetExtractor(outputStream));
+                    "WHERE c.descendant = :nodeId AND c.depth > 0 " +
+                    "ORDER BY c.depth";
+            namedParameterJdbcTemplate.query(sql, parameterSource,
+                    new DescendantsResultSetExtractor(outputStream, format));
 
         } catch (DataAccessException e) {
             throw new RuntimeException(e);
@@ -79,31 +418,54 @@ public class NodeRepository {
     }
 
     /**
-     * adds a single entry to the closure (children) table that links the node to itself as one of its descendants
+     * returns the ancestors of each of the given nodes (starting with the parent and ending with the root), keyed by
+     * node id; this is the same lookup as streamAncestorsById, with one range scan per node, for chunks of nodes at a
+     * time. Roots map to an empty list, and nodes that do not exist are not part of the result.
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, List<Node>> findAncestors(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT c.descendant, c.ancestor, " +
+                "coalesce(lead(c.ancestor) OVER (PARTITION BY c.descendant ORDER BY c.depth), 0), " +
+                "c.root, c.height - c.depth, c.depth " +
+                "FROM children c " +
+                "WHERE c.descendant IN (:ids) " +
+                "ORDER BY c.descendant, c.depth";
+        var ancestors = new HashMap<Integer, List<Node>>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    var path = ancestors.computeIfAbsent(resultSet.getInt(1), k -> new ArrayList<>());
+                    // the entry that links the node to itself is only read to tell roots from missing nodes
+                    if (resultSet.getInt(6) > 0) {
+                        path.add(new Node(resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4),
+                                resultSet.getInt(5)));
+                    }
+                }));
+        return ancestors;
+    }
+
+    /**
+     * adds a single entry to the closure (children) table that links the node to itself as one of its descendants;
+     * the height of the node must already be set
      *
      * @param node
      * @throws RuntimeException
      */
     public void createChildrenTableEntry(Node node) throws RuntimeException {
-        var sql = "INSERT INTO children(ancestor, descendant, depth, parent, root) " +
-                "VALUES(:nodeId, :nodeId, 0, :parentId, :rootId)";
+        var sql = "INSERT INTO children(ancestor, descendant, depth, parent, root, height) " +
+                "VALUES(:nodeId, :nodeId, 0, :parentId, :rootId, :height)";
         var parameterSource = new MapSqlParameterSource()
                 .addValue("nodeId", node.id)
                 .addValue("parentId", node.parentId > 0 ? node.parentId : null)
-                .addValue("rootId", node.rootId);
+                .addValue("rootId", node.rootId)
+                .addValue("height", node.height);
         namedParameterJdbcTemplate.update(sql, parameterSource);
     }
 
     public void updateChildrenTableEntry(Node node) throws RuntimeException {
-        var sql = "UPDATE children " +
-                "SET parent = :parentId, " +
-                "root = :rootId " +
-                "WHERE ancestor = :nodeId AND descendant = :nodeId AND depth = 0";
-        var parameterSource = new MapSqlParameterSource()
-                .addValue("nodeId", node.id)
-                .addValue("parentId", node.parentId)
-                .addValue("rootId", node.rootId);
-        namedParameterJdbcTemplate.update(sql, parameterSource);
+        namedParameterJdbcTemplate.update(UPDATE_CHILDREN_TABLE_ENTRY_SQL, nodeParameters(node));
     }
 
     /**
@@ -117,19 +479,229 @@ public class NodeRepository {
      * memory; however, moving a node from one parent to another is fast, allowing this approach to make strong
      * consistency and atomicity guarantees.
      *
+     * The heights of the node and its descendants are copied from the entries of the subtree, so when a node is
+     * moved, updateSubtree must be called first.
+     *
      * @param nodeId
      * @param parentId
      * @throws RuntimeException
      */
     public void addNodeToParentUpdate(int nodeId, int parentId) throws RuntimeException {
-        var sql = "INSERT into children(ancestor, descendant, parent, root, depth) " +
-                "SELECT p.ancestor, c.descendant, c.parent, p.root, p.depth+c.depth+1 " +
-                "FROM children p, children c " +
-                "WHERE p.descendant=:parentId and c.ancestor=:childId";
         var parameterSource = new MapSqlParameterSource()
                 .addValue("parentId", parentId)
                 .addValue("childId", nodeId);
-        namedParameterJdbcTemplate.update(sql, parameterSource);
+        addedEntries.record(namedParameterJdbcTemplate.update(ADD_NODE_TO_PARENT_SQL, parameterSource));
+    }
+
+    /**
+     * shifts the height of a node and all of its descendants by delta and sets the root of all entries within the
+     * subtree; this is called when a node is moved, after the entries linking the subtree to its old ancestors have
+     * been removed, so only the entries within the subtree need to be updated. Since every remaining entry links two
+     * nodes of the subtree, both columns are rewritten in a single pass over the subtree.
+     *
+     * @param nodeId
+     * @param delta
+     * @param rootId
+     * @throws RuntimeException
+     */
+    public void updateSubtree(int nodeId, int delta, int rootId) throws RuntimeException {
+        updatedEntries.record(namedParameterJdbcTemplate.update(UPDATE_SUBTREE_SQL,
+                subtreeParameters(nodeId, delta, rootId)));
+    }
+
+    /**
+     * sets the root of a node and all of its descendants in the main nodes table; this is called when a node is
+     * moved to another tree
+     *
+     * @param nodeId
+     * @param rootId
+     * @throws RuntimeException
+     */
+    public void updateSubtreeRoot(int nodeId, int rootId) throws RuntimeException {
+        namedParameterJdbcTemplate.update(UPDATE_SUBTREE_ROOT_SQL, subtreeParameters(nodeId, 0, rootId));
+    }
+
+    /**
+     * returns the aggregates of the subtree below a node, or null if the node does not exist; they are stored with
+     * the node, so this is a single primary key lookup
+     *
+     * @param id
+     * @return
+     * @throws RuntimeException
+     */
+    public SubtreeStats findSubtreeStats(int id) throws RuntimeException {
+        var sql = "SELECT descendants, max_depth, leaves FROM nodes WHERE id = :nodeId";
+        try {
+            return namedParameterJdbcTemplate.queryForObject(sql, new MapSqlParameterSource("nodeId", id),
+                    (resultSet, rowNumber) -> new SubtreeStats(id, resultSet.getInt(1), resultSet.getInt(2),
+                            resultSet.getInt(3)));
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Updates the subtree aggregates of a parent and all of its ancestors after new nodes have been added below the
+     * parent: each of them gains the given number of descendants and leaves (minus one leaf if the parent was a leaf
+     * itself until now), and its max depth grows if the deepest new node is deeper than its previous max depth. This
+     * must be called once the closure table links the parent to its ancestors.
+     *
+     * @param parentId
+     * @param nodes the number of nodes that were added below the parent
+     * @param leaves the number of leaves among them
+     * @param depth the depth of the deepest of them, relative to the parent
+     * @throws RuntimeException
+     */
+    public void addToSubtreeStats(int parentId, int nodes, int leaves, int depth) throws RuntimeException {
+        namedParameterJdbcTemplate.update(ADD_TO_SUBTREE_STATS_SQL, subtreeStatsParameters(parentId, nodes, leaves,
+                depth));
+    }
+
+    /**
+     * same as addToSubtreeStats for many parents at once, as {parentId, nodes, leaves, depth}; every parent may
+     * appear only once. The additions are summed up per ancestor first, so an ancestor that is shared by many
+     * parents (e.g. the root) is updated once per chunk of BATCH_SIZE parents instead of once per parent. A parent
+     * that was a leaf stops being one for all of its ancestors, which is decided on the stats before the update.
+     *
+     * @param additions
+     * @throws RuntimeException
+     */
+    public void batchAddToSubtreeStats(List<int[]> additions) throws RuntimeException {
+        forEachChunk(additions, chunk -> {
+            var values = new ArrayList<Object[]>(chunk.size());
+            for (var addition : chunk) {
+                values.add(new Object[]{addition[0], addition[1], addition[2], addition[3]});
+            }
+            namedParameterJdbcTemplate.update(ADD_MANY_TO_SUBTREE_STATS_SQL,
+                    new MapSqlParameterSource("additions", values));
+        });
+    }
+
+    /**
+     * The reverse of addToSubtreeStats, called when a subtree has been detached from the parent: the parent and its
+     * ancestors lose the nodes and leaves of the subtree (and the parent becomes a leaf if it has no other
+     * descendants). The max depth can not be updated incrementally, so it is looked up again; since the depth is the
+     * second column of the pdc_idx(ancestor, depth, descendant) index, this is a single index lookup per ancestor.
+     *
+     * @param parentId
+     * @param nodes the number of nodes that were removed from below the parent
+     * @param leaves the number of leaves among them
+     * @throws RuntimeException
+     */
+    public void removeFromSubtreeStats(int parentId, int nodes, int leaves) throws RuntimeException {
+        namedParameterJdbcTemplate.update(REMOVE_FROM_SUBTREE_STATS_SQL, subtreeStatsParameters(parentId, nodes,
+                leaves, 0));
+    }
+
+    /**
+     * Computes the subtree aggregates of the given nodes from the closure table and stores them wherever they
+     * differ from the stored values; this reads the whole subtree of every node, so it is only used to verify the
+     * incrementally maintained values.
+     *
+     * @param ids
+     * @return the number of nodes whose aggregates were corrected
+     * @throws RuntimeException
+     */
+    public int recomputeSubtreeStats(Collection<Integer> ids) throws RuntimeException {
+        var updated = new int[1];
+        forEachChunk(ids, chunk -> updated[0] += namedParameterJdbcTemplate.update(RECOMPUTE_SUBTREE_STATS_SQL,
+                new MapSqlParameterSource("ids", chunk)));
+        return updated[0];
+    }
+
+    /**
+     * returns up to limit node ids greater than afterId, in ascending order
+     *
+     * @param afterId
+     * @param limit
+     * @return
+     * @throws RuntimeException
+     */
+    public List<Integer> findIdsAfter(int afterId, int limit) throws RuntimeException {
+        var sql = "SELECT id FROM nodes WHERE id > :afterId ORDER BY id LIMIT :limit";
+        var parameterSource = new MapSqlParameterSource()
+                .addValue("afterId", afterId)
+                .addValue("limit", limit);
+        return namedParameterJdbcTemplate.queryForList(sql, parameterSource, Integer.class);
+    }
+
+    /**
+     * locks the rows of the given nodes until the end of the current transaction and returns the ids of the nodes
+     * that were locked; nodes that are locked by another transaction are skipped instead of waiting for them
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public List<Integer> lockNodes(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT id FROM nodes WHERE id IN (:ids) FOR UPDATE SKIP LOCKED";
+        var locked = new ArrayList<Integer>(ids.size());
+        forEachChunk(ids, chunk -> locked.addAll(namedParameterJdbcTemplate.queryForList(sql,
+                new MapSqlParameterSource("ids", chunk), Integer.class)));
+        return locked;
+    }
+
+    /**
+     * returns the distinct roots of the given nodes; nodes that do not exist are ignored
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Set<Integer> findRootIds(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT DISTINCT root FROM nodes WHERE id IN (:ids)";
+        var rootIds = new HashSet<Integer>();
+        forEachChunk(ids, chunk -> rootIds.addAll(namedParameterJdbcTemplate.queryForList(sql,
+                new MapSqlParameterSource("ids", chunk), Integer.class)));
+        return rootIds;
+    }
+
+    /**
+     * Takes a transaction-scoped advisory lock on each of the given trees, waiting for other transactions that hold
+     * one of them; the locks are released when the current transaction ends. The locks are taken in ascending order
+     * of the root ids (the subquery is sorted before the locks are taken in the outer query), so transactions that
+     * lock overlapping sets of trees queue up behind each other instead of deadlocking. The ids are given in a VALUES
+     * list, since the driver can not bind collections as arrays.
+     *
+     * @param rootIds
+     * @throws RuntimeException
+     */
+    public void lockTrees(Collection<Integer> rootIds) throws RuntimeException {
+        var sortedIds = new ArrayList<Integer>(rootIds);
+        sortedIds.sort(null);
+        forEachChunk(sortedIds, chunk -> {
+            var values = new ArrayList<Object[]>(chunk.size());
+            for (var id : chunk) {
+                values.add(new Object[]{id});
+            }
+            namedParameterJdbcTemplate.queryForObject(LOCK_TREES_SQL, new MapSqlParameterSource()
+                    .addValue("namespace", TREE_LOCK_NAMESPACE)
+                    .addValue("rootIds", values), Integer.class);
+        });
+    }
+
+    /**
+     * Like lockTrees, but does not wait: takes the locks of the given trees that are free and returns whether all of
+     * them could be taken. The locks that were taken are held until the current transaction ends either way.
+     *
+     * @param rootIds
+     * @return
+     * @throws RuntimeException
+     */
+    public boolean tryLockTrees(Collection<Integer> rootIds) throws RuntimeException {
+        var sortedIds = new ArrayList<Integer>(rootIds);
+        sortedIds.sort(null);
+        var locked = new boolean[]{true};
+        forEachChunk(sortedIds, chunk -> {
+            var values = new ArrayList<Object[]>(chunk.size());
+            for (var id : chunk) {
+                values.add(new Object[]{id});
+            }
+            locked[0] &= namedParameterJdbcTemplate.queryForObject(TRY_LOCK_TREES_SQL, new MapSqlParameterSource()
+                    .addValue("namespace", TREE_LOCK_NAMESPACE)
+                    .addValue("rootIds", values), Boolean.class);
+        });
+        return locked[0];
     }
 
     /**
@@ -154,37 +726,83 @@ public class NodeRepository {
         var parameterSource = new MapSqlParameterSource()
                 .addValue("parentId", parentId)
                 .addValue("childId", childId);
-        return namedParameterJdbcTemplate.queryForObject(sql, parameterSource, (resultSet, rowNumber) -> resultSet.getBoolean("exists"));
+        return namedParameterJdbcTemplate.queryForObject(sql, parameterSource,
+                (resultSet, rowNumber) -> resultSet.getBoolean("exists"));
     }
 
     /**
-     * This is the reverse of addNodeToParentUpdate; we delete all parent-descendant relationships for all parents
-     * of the node and the nodes in its subtree.
+     * checks many parent-descendant relationships at once (see isDescendantOf); the pairs are looked up by key in
+     * cp_unique_idx with one query per chunk of BATCH_SIZE pairs. The pairs are joined as a VALUES list, since the
+     * planner does not use the index for a long list of (ancestor, descendant) IN (...) tuples
+     *
+     * @param relationships
+     * @return whether each of the relationships exists, in the same order
+     * @throws RuntimeException
+     */
+    public List<Boolean> areDescendantsOf(List<NodeRelationship> relationships) throws RuntimeException {
+        var sql = "SELECT c.ancestor, c.descendant " +
+                "FROM (VALUES :pairs) p(ancestor, descendant) " +
+                "JOIN children c ON c.ancestor = p.ancestor AND c.descendant = p.descendant";
+        var existing = new HashSet<Long>();
+        for (var i = 0; i < relationships.size(); i += BATCH_SIZE) {
+            var pairs = new ArrayList<Object[]>(BATCH_SIZE);
+            for (var relationship : relationships.subList(i, Math.min(i + BATCH_SIZE, relationships.size()))) {
+                pairs.add(new Object[]{relationship.ancestorId, relationship.descendantId});
+            }
+            namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("pairs", pairs), resultSet -> {
+                existing.add(pairKey(resultSet.getInt(1), resultSet.getInt(2)));
+            });
+        }
+        var result = new ArrayList<Boolean>(relationships.size());
+        for (var relationship : relationships) {
+            result.add(existing.contains(pairKey(relationship.ancestorId, relationship.descendantId)));
+        }
+        return result;
+    }
+
+    /**
+     * Finds the lowest common ancestor of two nodes (either of which may be the common ancestor itself): of all the
+     * ancestors of the first node (a range scan of cpd_idx), we keep those that are ancestors of the other node as
+     * well (a key lookup in cpd_idx each) and take the one with the smallest depth. The distance between the nodes is
+     * the sum of their depths below the common ancestor. Returns null if the nodes are not part of the same tree.
      *
      * @param nodeId
-     * @param parentId
+     * @param otherNodeId
+     * @return
      * @throws RuntimeException
      */
-    public void removeNodeFromParentUpdate(int nodeId, int parentId) throws RuntimeException {
-        var sql = "DELETE FROM children " +
-                "USING " +
-                "(SELECT link.ancestor AS ancestor, link.descendant AS descendant, link.depth AS depth, " +
-                " link.parent as parent, link.root as root " +
-                " FROM children p, children link, children c " +
-                " WHERE p.ancestor = link.ancestor AND c.descendant = link.descendant " +
-                "   AND p.descendant=:parentId AND c.ancestor=:childId) l " +
-                "WHERE children.ancestor = l.ancestor AND children.descendant = l.descendant " +
-                "AND children.depth = l.depth " +
-                "AND children.parent = l.parent " +
-                "AND children.root = l.root";
+    public CommonAncestor findCommonAncestor(int nodeId, int otherNodeId) throws RuntimeException {
+        var sql = "SELECT a.ancestor, a.depth + b.depth " +
+                "FROM children a, children b " +
+                "WHERE a.descendant = :nodeId AND b.descendant = :otherNodeId AND b.ancestor = a.ancestor " +
+                "ORDER BY a.depth " +
+                "LIMIT 1";
         var parameterSource = new MapSqlParameterSource()
-                .addValue("parentId", parentId)
-                .addValue("childId", nodeId);
-        namedParameterJdbcTemplate.update(sql, parameterSource);
+                .addValue("nodeId", nodeId)
+                .addValue("otherNodeId", otherNodeId);
+        try {
+            return namedParameterJdbcTemplate.queryForObject(sql, parameterSource,
+                    (resultSet, rowNumber) -> new CommonAncestor(nodeId, otherNodeId, resultSet.getInt(1),
+                            resultSet.getInt(2)));
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This is the reverse of addNodeToParentUpdate; we delete all parent-descendant relationships for all parents
+     * of the node and the nodes in its subtree (see removeNodesFromParents).
+     *
+     * @param nodeId
+     * @throws RuntimeException
+     */
+    public void removeNodeFromParentUpdate(int nodeId) throws RuntimeException {
+        removeNodesFromParents(List.of(nodeId));
     }
 
     /**
-     * creates a single entry in the main nodes table; this is called initially whenever a new node is created
+     * creates a single entry in the main nodes table; this is called initially whenever a new node is created. The
+     * id is given by the client, so the node is returned as it was inserted instead of being read back
      *
      * @param node
      * @return
@@ -197,12 +815,8 @@ public class NodeRepository {
                 .addValue("nodeId", node.id)
                 .addValue("parentId", node.parentId > 0 ? node.parentId : null)
                 .addValue("rootNodeId", node.rootId);
-        KeyHolder holder = new GeneratedKeyHolder();
-        namedParameterJdbcTemplate.update(sql, parameterSource, holder);
-        //var resultNode = new Node();
-        var newId = (int) holder.getKeys().getOrDefault("id", -1);
-
-        return this.findById(newId);
+        namedParameterJdbcTemplate.update(sql, parameterSource);
+        return new Node(node.id, Math.max(node.parentId, 0), node.rootId);
     }
 
     /**
@@ -213,15 +827,586 @@ public class NodeRepository {
      * @throws RuntimeException
      */
     public void updateNodesTableEntry(Node node) throws RuntimeException {
-        var sql = "UPDATE nodes  " +
-                "SET parent = :parentId, " +
-                "root = :rootId " +
-                "WHERE id = :nodeId";
+        namedParameterJdbcTemplate.update(UPDATE_NODES_TABLE_ENTRY_SQL, nodeParameters(node));
+    }
+
+    /**
+     * Applies the changes of a batch move to the nodes table and the closure table; the moves must be ordered so
+     * that the new parent of every moved node is already in its final place (i.e. all moves of nodes above the new
+     * parent come first), and the nodes must carry their new parent, root and height.
+     *
+     * First, the subtrees of all moved nodes are detached from their ancestors with a single DELETE (see
+     * removeNodesFromParents); then the heights and roots within each detached subtree are updated, and the nodes table
+     * and the entries linking each moved node to itself are updated. Lastly, each subtree is attached to the ancestors
+     * of its new parent with the same INSERT ... SELECT that addNodeToParentUpdate uses. Apart from the DELETE, every
+     * step is sent as a single JDBC batch, which the database executes in order. Moves of nested subtrees can not be
+     * reflected in the subtree aggregates incrementally, so the aggregates of all old and new ancestors of the moved
+     * nodes are computed again from their children (see updateSubtreeStatsFromChildren).
+     *
+     * @param movedNodes
+     * @param heightDeltas the change in height of each moved node whose height changes
+     * @param rootChanges the ids of the moved nodes whose root changes
+     * @throws RuntimeException
+     */
+    public void moveNodesUpdate(List<Node> movedNodes, Map<Integer, Integer> heightDeltas,
+                                Set<Integer> rootChanges) throws RuntimeException {
+        var ids = new ArrayList<Integer>(movedNodes.size());
+        for (var node : movedNodes) {
+            ids.add(node.id);
+        }
+        // the aggregates of every node that is an ancestor of a moved node before or after the move change
+        var affectedIds = findAncestorIds(ids);
+        removeNodesFromParents(ids);
+        var subtreeParameters = new ArrayList<SqlParameterSource>();
+        var rootParameters = new ArrayList<SqlParameterSource>(rootChanges.size());
+        var nodeParameters = new ArrayList<SqlParameterSource>(movedNodes.size());
+        var parentParameters = new ArrayList<SqlParameterSource>(movedNodes.size());
+        for (var node : movedNodes) {
+            var delta = heightDeltas.getOrDefault(node.id, 0);
+            if (delta != 0 || rootChanges.contains(node.id)) {
+                subtreeParameters.add(subtreeParameters(node.id, delta, node.rootId));
+            }
+            if (rootChanges.contains(node.id)) {
+                rootParameters.add(subtreeParameters(node.id, 0, node.rootId));
+            }
+            nodeParameters.add(nodeParameters(node));
+            parentParameters.add(new MapSqlParameterSource()
+                    .addValue("parentId", node.parentId)
+                    .addValue("childId", node.id));
+        }
+        record(updatedEntries, namedParameterJdbcTemplate.batchUpdate(UPDATE_SUBTREE_SQL,
+                subtreeParameters.toArray(new SqlParameterSource[0])));
+        namedParameterJdbcTemplate.batchUpdate(UPDATE_SUBTREE_ROOT_SQL,
+                rootParameters.toArray(new SqlParameterSource[0]));
+        namedParameterJdbcTemplate.batchUpdate(UPDATE_NODES_TABLE_ENTRY_SQL,
+                nodeParameters.toArray(new SqlParameterSource[0]));
+        namedParameterJdbcTemplate.batchUpdate(UPDATE_CHILDREN_TABLE_ENTRY_SQL,
+                nodeParameters.toArray(new SqlParameterSource[0]));
+        record(addedEntries, namedParameterJdbcTemplate.batchUpdate(ADD_NODE_TO_PARENT_SQL,
+                parentParameters.toArray(new SqlParameterSource[0])));
+        affectedIds.addAll(findAncestorIds(ids));
+        updateSubtreeStatsFromChildren(affectedIds);
+    }
+
+    /**
+     * Sets the subtree aggregates of the given nodes from the aggregates of their children; the nodes are updated
+     * level by level, starting with the deepest, so the aggregates of every child are already up to date by the time
+     * its parent is updated, provided that only the given nodes had outdated aggregates. Unlike recomputeSubtreeStats,
+     * this only reads the direct children of each node.
+     *
+     * @param ids
+     * @throws RuntimeException
+     */
+    private void updateSubtreeStatsFromChildren(Collection<Integer> ids) throws RuntimeException {
+        var idsByHeight = new TreeMap<Integer, List<Integer>>(Comparator.reverseOrder());
+        findHeightsById(ids).forEach((id, height) ->
+                idsByHeight.computeIfAbsent(height, k -> new ArrayList<>()).add(id));
+        for (var level : idsByHeight.values()) {
+            forEachChunk(level, chunk -> namedParameterJdbcTemplate.update(UPDATE_SUBTREE_STATS_FROM_CHILDREN_SQL,
+                    new MapSqlParameterSource("ids", chunk)));
+        }
+    }
+
+    /**
+     * returns the ids of all (strict) ancestors of the given nodes
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    private Set<Integer> findAncestorIds(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT DISTINCT ancestor FROM children WHERE descendant IN (:ids) AND depth > 0";
+        var ancestorIds = new HashSet<Integer>();
+        forEachChunk(ids, chunk -> ancestorIds.addAll(namedParameterJdbcTemplate.queryForList(sql,
+                new MapSqlParameterSource("ids", chunk), Integer.class)));
+        return ancestorIds;
+    }
+
+    /**
+     * Removes all entries that link the subtrees of the given nodes to the ancestors of those nodes, i.e. every pair
+     * of a (strict) ancestor of a moved node and a node within its subtree, looked up by key. When moved nodes are
+     * nested, the pairs of both are removed, so every moved node ends up as the top of a separate subtree that only
+     * contains the nodes that are not below another moved node.
+     *
+     * Both the ancestors (a) and the subtree (d) are found with a range scan of one of the indexes, and every pair is
+     * deleted by key with cp_unique_idx(ancestor, descendant), so the cost only depends on the number of entries that
+     * are removed; the entries within the subtree are not touched.
+     *
+     * @param nodeIds
+     * @throws RuntimeException
+     */
+    private void removeNodesFromParents(List<Integer> nodeIds) throws RuntimeException {
+        var removed = 0;
+        for (var i = 0; i < nodeIds.size(); i += BATCH_SIZE) {
+            var chunk = nodeIds.subList(i, Math.min(i + BATCH_SIZE, nodeIds.size()));
+            removed += namedParameterJdbcTemplate.update(REMOVE_NODES_FROM_PARENTS_SQL,
+                    new MapSqlParameterSource("ids", chunk));
+        }
+        removedEntries.record(removed);
+    }
+
+    /**
+     * Deletes up to limit nodes of the subtree below a node (including the node itself) together with all of their
+     * closure table entries, starting with the deepest nodes. Every node that is deleted either has no descendants
+     * left or only descendants that are deleted in the same batch, so every batch leaves a valid tree behind, and the
+     * subtree is gone once the node itself has been deleted.
+     *
+     * The nodes are read with a backward range scan of pdc_idx(ancestor, depth, descendant) and locked, so that they
+     * can not be moved while the batch is deleted; their closure table entries (the ones linking them to the nodes
+     * above, including the ancestors outside of the subtree) are deleted through cpd_idx(descendant, ...), so a batch
+     * touches at most limit times the height of the tree entries. The subtree aggregates of the remaining ancestors
+     * are updated like after a move (see removeFromSubtreeStats), but with a single statement for all parents whose
+     * children are deleted, so that ancestors shared by many of them are only updated once.
+     *
+     * @param nodeId
+     * @param limit
+     * @return the deleted nodes (only id and parent are set), ordered so that children come before their parents
+     * @throws RuntimeException
+     */
+    public List<Node> deleteSubtreeBatch(int nodeId, int limit) throws RuntimeException {
         var parameterSource = new MapSqlParameterSource()
+                .addValue("nodeId", nodeId)
+                .addValue("limit", limit);
+        var nodes = new ArrayList<Node>();
+        var stats = new HashMap<Integer, SubtreeStats>();
+        namedParameterJdbcTemplate.query(FIND_DELETION_BATCH_SQL, parameterSource, resultSet -> {
+            var node = new Node(resultSet.getInt(1), resultSet.getInt(2), 0);
+            nodes.add(node);
+            stats.put(node.id, new SubtreeStats(node.id, resultSet.getInt(3), 0, resultSet.getInt(4)));
+        });
+        if (nodes.isEmpty()) {
+            return nodes;
+        }
+        // the tops of the deleted parts of the subtree are removed from their parents like a moved subtree; their
+        // aggregates only cover nodes of this batch, since everything below them has been deleted before
+        var removals = new LinkedHashMap<Integer, int[]>();
+        for (var node : nodes) {
+            if (node.parentId > 0 && !stats.containsKey(node.parentId)) {
+                var removal = removals.computeIfAbsent(node.parentId, id -> new int[]{id, 0, 0});
+                removal[1] += stats.get(node.id).descendants + 1;
+                removal[2] += stats.get(node.id).leaves;
+            }
+        }
+        // children are deleted before their parents, so the foreign keys hold after every chunk
+        var ids = new ArrayList<Integer>(nodes.size());
+        for (var node : nodes) {
+            ids.add(node.id);
+        }
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.update(
+                "DELETE FROM children WHERE descendant IN (:ids)", new MapSqlParameterSource("ids", chunk)));
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.update(
+                "DELETE FROM nodes WHERE id IN (:ids)", new MapSqlParameterSource("ids", chunk)));
+        // every parent appears once, so a parent that loses all of its descendants becomes a leaf of all of its
+        // ancestors
+        var values = new ArrayList<Object[]>(BATCH_SIZE);
+        for (var removal : removals.values()) {
+            values.add(new Object[]{removal[0], removal[1], removal[2]});
+            if (values.size() == BATCH_SIZE) {
+                namedParameterJdbcTemplate.update(REMOVE_MANY_FROM_SUBTREE_STATS_SQL,
+                        new MapSqlParameterSource("removals", values));
+                values = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!values.isEmpty()) {
+            namedParameterJdbcTemplate.update(REMOVE_MANY_FROM_SUBTREE_STATS_SQL,
+                    new MapSqlParameterSource("removals", values));
+        }
+        return nodes;
+    }
+
+    /**
+     * returns the parent, root and height of those of the given nodes that exist, keyed by node id; the ids are
+     * looked up in chunks
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, Node> findByIds(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT n.id, n.parent, n.root, s.height " +
+                "FROM nodes n " +
+                "LEFT JOIN children s ON s.ancestor = n.id AND s.descendant = n.id " +
+                "WHERE n.id IN (:ids)";
+        var nodes = new HashMap<Integer, Node>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    var node = new Node(resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3),
+                            resultSet.getInt(4));
+                    nodes.put(node.id, node);
+                }));
+        return nodes;
+    }
+
+    /**
+     * for each of the given nodes, returns the closest of the candidate nodes that is either an ancestor of the node
+     * or the node itself; nodes without such an ancestor are not part of the result
+     *
+     * @param ids
+     * @param candidateIds
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, Integer> findClosestAncestors(Collection<Integer> ids, Collection<Integer> candidateIds)
+            throws RuntimeException {
+        var sql = "SELECT descendant, ancestor, depth FROM children " +
+                "WHERE descendant IN (:ids) AND ancestor IN (:candidateIds)";
+        var closest = new HashMap<Integer, Integer>();
+        var depths = new HashMap<Integer, Integer>();
+        forEachChunk(ids, chunk -> forEachChunk(candidateIds, candidateChunk -> {
+            var parameterSource = new MapSqlParameterSource()
+                    .addValue("ids", chunk)
+                    .addValue("candidateIds", candidateChunk);
+            namedParameterJdbcTemplate.query(sql, parameterSource, resultSet -> {
+                var id = resultSet.getInt(1);
+                var depth = resultSet.getInt(3);
+                var closestDepth = depths.get(id);
+                if (closestDepth == null || depth < closestDepth) {
+                    closest.put(id, resultSet.getInt(2));
+                    depths.put(id, depth);
+                }
+            });
+        }));
+        return closest;
+    }
+
+    /**
+     * returns the heights of those of the given nodes that exist, keyed by node id; the ids are looked up in chunks,
+     * so that very large imports do not exceed the number of bind parameters allowed per statement
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, Integer> findHeightsById(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT descendant, height FROM children WHERE descendant IN (:ids) AND ancestor = descendant";
+        var heights = new HashMap<Integer, Integer>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    heights.put(resultSet.getInt(1), resultSet.getInt(2));
+                }));
+        return heights;
+    }
+
+    /**
+     * returns those of the given nodes that exist, with their parent, root and height, keyed by node id; like
+     * findHeightsById, the ids are looked up in chunks
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, Node> findNodesById(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT descendant, parent, root, height FROM children " +
+                "WHERE descendant IN (:ids) AND ancestor = descendant";
+        var nodes = new HashMap<Integer, Node>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    var id = resultSet.getInt(1);
+                    nodes.put(id, new Node(id, resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4)));
+                }));
+        return nodes;
+    }
+
+    /**
+     * inserts many entries into the main nodes table using JDBC batches; the nodes must be ordered so that every
+     * parent is inserted before its children, otherwise the foreign key on the parent column is violated
+     *
+     * @param nodes
+     * @param stats the subtree aggregates of every node
+     * @throws RuntimeException
+     */
+    public void batchCreateNodesTableEntries(List<Node> nodes, Map<Integer, SubtreeStats> stats)
+            throws RuntimeException {
+        var sql = "INSERT INTO nodes(id, parent, root, descendants, max_depth, leaves) VALUES (?, ?, ?, ?, ?, ?)";
+        namedParameterJdbcTemplate.getJdbcOperations().batchUpdate(sql, nodes, BATCH_SIZE, (ps, node) -> {
+            var nodeStats = stats.get(node.id);
+            ps.setInt(1, node.id);
+            setParent(ps, 2, node.parentId);
+            ps.setInt(3, node.rootId);
+            ps.setInt(4, nodeStats.descendants);
+            ps.setInt(5, nodeStats.maxDepth);
+            ps.setInt(6, nodeStats.leaves);
+        });
+    }
+
+    /**
+     * returns the closure table entries that link each of the given nodes to its ancestors (and to itself), as
+     * {ancestor, depth, root} keyed by node id; the ids are looked up in chunks
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, List<int[]>> findAncestorEntries(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT descendant, ancestor, depth, root FROM children WHERE descendant IN (:ids)";
+        var entries = new HashMap<Integer, List<int[]>>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    entries.computeIfAbsent(resultSet.getInt(1), k -> new ArrayList<>())
+                            .add(new int[]{resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4)});
+                }));
+        return entries;
+    }
+
+    /**
+     * Builds the closure (children) table entries for a set of new nodes in a single pass: for every node we add the
+     * entry that links it to itself, plus one entry for each of its ancestors that is part of the same set. When the
+     * walk up the ancestors reaches a parent outside of the set, the node is linked to that parent and each of its
+     * ancestors as well, using the parent's own closure table entries (see findAncestorEntries); these are read
+     * once per existing parent, however many new nodes are added below it.
+     *
+     * The ancestor chains are walked in memory, so no rows need to be read back from the database; the resulting
+     * rows are written in JDBC batches of BATCH_SIZE. The height of every node must already be set.
+     *
+     * @param nodes
+     * @param parentEntries the result of findAncestorEntries for all existing parents of the nodes
+     * @throws RuntimeException
+     */
+    public void batchCreateChildrenTableEntries(Collection<Node> nodes, Map<Integer, List<int[]>> parentEntries)
+            throws RuntimeException {
+        var sql = "INSERT INTO children(ancestor, descendant, depth, parent, root, height) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+        var nodesById = new HashMap<Integer, Node>(nodes.size() * 2);
+        for (var node : nodes) {
+            nodesById.put(node.id, node);
+        }
+        var batch = new ArrayList<int[]>(BATCH_SIZE);
+        for (var node : nodes) {
+            // the row linking the node to itself, then one row per ancestor within the set and one per existing
+            // ancestor
+            var ancestor = node;
+            var depth = 0;
+            while (true) {
+                batch.add(new int[]{ancestor.id, node.id, depth, node.parentId, ancestor.rootId, node.height});
+                if (batch.size() == BATCH_SIZE) {
+                    insertChildrenTableEntries(sql, batch);
+                    batch.clear();
+                }
+                if (ancestor.parentId <= 0) {
+                    break;
+                }
+                var parent = nodesById.get(ancestor.parentId);
+                if (parent == null) {
+                    // the rest of the chain already exists
+                    for (var entry : parentEntries.get(ancestor.parentId)) {
+                        batch.add(new int[]{entry[0], node.id, depth + entry[1] + 1, node.parentId, entry[2],
+                                node.height});
+                        if (batch.size() == BATCH_SIZE) {
+                            insertChildrenTableEntries(sql, batch);
+                            batch.clear();
+                        }
+                    }
+                    break;
+                }
+                ancestor = parent;
+                depth++;
+            }
+        }
+        if (!batch.isEmpty()) {
+            insertChildrenTableEntries(sql, batch);
+        }
+    }
+
+    private void insertChildrenTableEntries(String sql, List<int[]> rows) {
+        namedParameterJdbcTemplate.getJdbcOperations().batchUpdate(sql, rows, rows.size(), (ps, row) -> {
+            ps.setInt(1, row[0]);
+            ps.setInt(2, row[1]);
+            ps.setInt(3, row[2]);
+            setParent(ps, 4, row[3]);
+            ps.setInt(5, row[4]);
+            ps.setInt(6, row[5]);
+        });
+    }
+
+    /**
+     * Streams the descendants of a node like streamDescendantsById, but from the interval index (see IntervalIndex)
+     * instead of the closure table: the descendants of a node are exactly the nodes of its tree whose pre number lies
+     * between the node's pre and post numbers, so this is a single range scan over interval_idx(root, pre) that only
+     * touches the nodes table, in depth-first order; the heights are taken from the self rows of the closure table
+     * (depth 0), which are looked up by key. The depth range is only checked on the rows of that range, so
+     * the whole subtree is read even for a narrow range; NodeService only uses this for whole subtrees. Must be
+     * called from a transactional method, like streamDescendantsById.
+     *
+     * @param id
+     * @param minDepth
+     * @param maxDepth
+     * @param format
+     * @param outputStream
+     * @return the number of descendants that were written
+     * @throws RuntimeException
+     */
+    public int streamDescendantsByInterval(int id, int minDepth, int maxDepth, DescendantsFormat format,
+                                           OutputStream outputStream) throws RuntimeException {
+        try {
+            var parameterSource = new MapSqlParameterSource()
+                    .addValue("nodeId", id)
+                    .addValue("minDepth", minDepth)
+                    .addValue("maxDepth", maxDepth);
+            var sql = "SELECT n.id, n.parent, n.root, s.height " +
+                    "FROM nodes a " +
+                    "JOIN children sa ON sa.ancestor = a.id AND sa.descendant = a.id " +
+                    "JOIN nodes n ON n.root = a.root AND n.pre > a.pre AND n.pre < a.post " +
+                    "JOIN children s ON s.ancestor = n.id AND s.descendant = n.id " +
+                    "WHERE a.id = :nodeId AND s.height - sa.height BETWEEN :minDepth AND :maxDepth " +
+                    "ORDER BY n.pre";
+            return streamingJdbcTemplate.query(sql, parameterSource,
+                    new DescendantsResultSetExtractor(outputStream, format));
+        } catch (DataAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * returns the interval of each of the given nodes as {pre, post, next}, keyed by node id, where next is
+     * the lowest pre number in the node's tree that comes after the node's own pre number (i.e. the pre number of
+     * its first child, or of the node that follows its subtree), or Long.MAX_VALUE if there is none; each next is a
+     * single probe of interval_idx. Nodes without an interval are left out.
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, long[]> findIntervals(Collection<Integer> ids) throws RuntimeException {
+        var sql = "SELECT p.id, p.pre, p.post, " +
+                "(SELECT min(n.pre) FROM nodes n WHERE n.root = p.root AND n.pre > p.pre) " +
+                "FROM nodes p WHERE p.id IN (:ids) AND p.pre IS NOT NULL";
+        var intervals = new HashMap<Integer, long[]>();
+        forEachChunk(ids, chunk -> namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("ids", chunk),
+                resultSet -> {
+                    var next = resultSet.getLong(4);
+                    if (resultSet.wasNull()) {
+                        next = Long.MAX_VALUE;
+                    }
+                    intervals.put(resultSet.getInt(1), new long[]{resultSet.getLong(2), resultSet.getLong(3), next});
+                }));
+        return intervals;
+    }
+
+    /**
+     * returns the roots of the trees whose intervals are missing or do not match the topology: a node without an
+     * interval, or whose interval does not fit into that of its parent, or that overlaps the interval of a sibling.
+     * This happens when the tree was written while the interval index was disabled. Reads the whole nodes table once.
+     *
+     * @return
+     * @throws RuntimeException
+     */
+    public Set<Integer> findRootIdsWithInvalidIntervals() throws RuntimeException {
+        var sql = "SELECT DISTINCT n.root " +
+                "FROM (SELECT id, parent, root, pre, post, " +
+                "lead(pre) OVER (PARTITION BY root, parent ORDER BY pre) AS next_sibling FROM nodes) n " +
+                "LEFT JOIN nodes p ON p.id = n.parent " +
+                "WHERE n.pre IS NULL OR n.post IS NULL OR n.post <= n.pre " +
+                "OR n.next_sibling <= n.post " +
+                "OR (p.id IS NOT NULL AND (p.root <> n.root OR n.pre <= p.pre OR n.post >= p.post))";
+        return new HashSet<>(namedParameterJdbcTemplate.getJdbcOperations().queryForList(sql, Integer.class));
+    }
+
+    /**
+     * returns the id and parent of every node of a tree
+     *
+     * @param rootId
+     * @return
+     * @throws RuntimeException
+     */
+    public List<Node> findTree(int rootId) throws RuntimeException {
+        var sql = "SELECT id, parent FROM nodes WHERE root = :rootId";
+        return namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource("rootId", rootId),
+                (resultSet, rowNumber) -> new Node(resultSet.getInt(1), resultSet.getInt(2), rootId));
+    }
+
+    /**
+     * sets the intervals of many nodes at once, as {id, pre, post}, with one UPDATE per chunk of BATCH_SIZE
+     * nodes
+     *
+     * @param intervals
+     * @throws RuntimeException
+     */
+    public void updateIntervals(List<long[]> intervals) throws RuntimeException {
+        var sql = "UPDATE nodes n SET pre = v.pre, post = v.post " +
+                "FROM (VALUES :intervals) v(id, pre, post) WHERE n.id = v.id";
+        forEachChunk(intervals, chunk -> {
+            var values = new ArrayList<Object[]>(chunk.size());
+            for (var interval : chunk) {
+                values.add(new Object[]{(int) interval[0], interval[1], interval[2]});
+            }
+            namedParameterJdbcTemplate.update(sql, new MapSqlParameterSource("intervals", values));
+        });
+    }
+
+    /**
+     * returns the id and parent of a node and all of its descendants by the interval index (the nodes of the tree
+     * whose pre number lies between pre and post), in depth-first order, so every parent comes before its children
+     *
+     * @param rootId
+     * @param pre
+     * @param post
+     * @return
+     * @throws RuntimeException
+     */
+    public List<Node> findSubtreeByInterval(int rootId, long pre, long post) throws RuntimeException {
+        var sql = "SELECT id, parent FROM nodes WHERE root = :rootId AND pre BETWEEN :pre AND :post ORDER BY pre";
+        return namedParameterJdbcTemplate.query(sql, new MapSqlParameterSource()
+                        .addValue("rootId", rootId)
+                        .addValue("pre", pre)
+                        .addValue("post", post),
+                (resultSet, rowNumber) -> new Node(resultSet.getInt(1), resultSet.getInt(2), rootId));
+    }
+
+    /**
+     * records the update counts of a JDBC batch; the driver may not know the count of some statements
+     */
+    private static void record(DistributionSummary summary, int[] counts) {
+        for (var count : counts) {
+            if (count >= 0) {
+                summary.record(count);
+            }
+        }
+    }
+
+    private static <T> void forEachChunk(Collection<T> ids, Consumer<List<T>> consumer) {
+        var chunk = new ArrayList<T>(BATCH_SIZE);
+        var iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() == BATCH_SIZE || !iterator.hasNext()) {
+                consumer.accept(chunk);
+                chunk = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+    }
+
+    private static MapSqlParameterSource nodeParameters(Node node) {
+        return new MapSqlParameterSource()
                 .addValue("parentId", node.parentId)
                 .addValue("nodeId", node.id)
                 .addValue("rootId", node.rootId);
-        namedParameterJdbcTemplate.update(sql, parameterSource);
+    }
+
+    private static MapSqlParameterSource subtreeParameters(int nodeId, int delta, int rootId) {
+        return new MapSqlParameterSource()
+                .addValue("nodeId", nodeId)
+                .addValue("delta", delta)
+                .addValue("rootId", rootId);
+    }
+
+    private static MapSqlParameterSource subtreeStatsParameters(int parentId, int nodes, int leaves, int depth) {
+        return new MapSqlParameterSource()
+                .addValue("parentId", parentId)
+                .addValue("nodes", nodes)
+                .addValue("leaves", leaves)
+                .addValue("depth", depth);
+    }
+
+    private static long pairKey(int ancestorId, int descendantId) {
+        return ((long) ancestorId << 32) | (descendantId & 0xffffffffL);
+    }
+
+    private static void setParent(PreparedStatement ps, int index, int parentId) throws SQLException {
+        if (parentId > 0) {
+            ps.setInt(index, parentId);
+        } else {
+            ps.setNull(index, Types.INTEGER);
+        }
     }
 
 }
@@ -0,0 +1,219 @@
+package com.patricksalami.treeservice.service;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.exceptions.WriteTimeoutException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Commits single node inserts in groups. Every POST /node costs a transaction of its own, and most of that time is
+ * spent on the round trips and on waiting for the commit to be flushed to disk, not on the insert itself. With
+ * treeservice.group-commit.enabled, the inserts are queued instead and written by a single thread: it takes the
+ * first queued node, waits up to treeservice.group-commit.max-delay milliseconds for more (or until
+ * treeservice.group-commit.max-size nodes are queued), and creates all of them with NodeService.createNodes in one
+ * transaction, which also links all new children of the same parent with a single statement.
+ *
+ * Each caller still waits until the group that contains its node has been committed, so a node is durable once it
+ * has been returned. If the group can not be committed as a whole (e.g. because one of the nodes already exists or
+ * its parent does not), its nodes are created one by one in the order in which they were queued, so that every
+ * caller gets the result or the error it would have gotten without grouping.
+ *
+ * A caller waits at most treeservice.group-commit.timeout milliseconds for room in the queue and for its group to be
+ * committed, and then gets a WriteTimeoutException (503). If the writer fails unexpectedly, the callers of the group
+ * it was writing get the error, and the writer goes on with the next group.
+ */
+@Component
+@ConditionalOnProperty(name = "treeservice.group-commit.enabled", havingValue = "true")
+public class GroupCommitWriter {
+
+    private final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${treeservice.group-commit.max-size:500}")
+    int maxSize;
+
+    @Value("${treeservice.group-commit.max-delay:2}")
+    long maxDelay;
+
+    @Value("${treeservice.group-commit.queue-size:10000}")
+    int queueSize;
+
+    @Value("${treeservice.group-commit.timeout:30000}")
+    long timeout;
+
+    private BlockingQueue<Insert> queue;
+
+    private DistributionSummary groupSizes;
+
+    private Thread writer;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    void startWriter() {
+        queue = new LinkedBlockingQueue<>(queueSize);
+        groupSizes = DistributionSummary.builder("treeservice.group-commit.size")
+                .description("Number of nodes created per group commit")
+                .register(meterRegistry);
+        writer = new Thread(this::run, "group-commit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    void stopWriter() throws InterruptedException {
+        running = false;
+        writer.interrupt();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        Insert insert;
+        while ((insert = queue.poll()) != null) {
+            insert.result.completeExceptionally(new IllegalStateException("The service is shutting down"));
+        }
+    }
+
+    /**
+     * queues a node and waits until the group that contains it has been committed; blocks while the queue is full
+     *
+     * @param node
+     * @return the created node with its height
+     * @throws RuntimeException the exception NodeService.createNode would have thrown for this node, or
+     * WriteTimeoutException if the node was not created within the timeout (it may still be created if its group was
+     * already being written)
+     */
+    public Node createNode(Node node) throws RuntimeException {
+        var insert = new Insert(node);
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (!queue.offer(insert, timeout, TimeUnit.MILLISECONDS)) {
+                throw new WriteTimeoutException();
+            }
+            return insert.result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // a node that is still queued will not be written anymore
+            queue.remove(insert);
+            throw new WriteTimeoutException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the node to be created", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    private void run() {
+        var group = new ArrayList<Insert>(maxSize);
+        while (running) {
+            try {
+                group.add(queue.take());
+                var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                queue.drainTo(group, maxSize - group.size());
+                while (group.size() < maxSize) {
+                    var insert = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (insert == null) {
+                        break;
+                    }
+                    group.add(insert);
+                    queue.drainTo(group, maxSize - group.size());
+                }
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+            }
+            if (!group.isEmpty()) {
+                commitOrFail(group);
+                group.clear();
+            }
+        }
+        // commit what was taken from the queue before we were stopped
+        if (!group.isEmpty()) {
+            commitOrFail(group);
+        }
+    }
+
+    /**
+     * commits a group, and passes any unexpected error on to the callers that are still waiting, so that neither
+     * they nor the writer thread get stuck
+     */
+    private void commitOrFail(List<Insert> group) {
+        try {
+            commit(group);
+        } catch (Throwable e) {
+            logger.error("Committing a group of {} nodes failed", group.size(), e);
+            for (var insert : group) {
+                insert.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void commit(List<Insert> group) {
+        groupSizes.record(group.size());
+        var nodes = new ArrayList<Node>(group.size());
+        for (var insert : group) {
+            nodes.add(insert.node);
+        }
+        List<Node> createdNodes;
+        try {
+            createdNodes = nodeService.createNodes(nodes);
+        } catch (RuntimeException e) {
+            if (group.size() == 1) {
+                group.get(0).result.completeExceptionally(e);
+                return;
+            }
+            logger.debug("Creating a group of {} nodes failed, creating them one by one", group.size(), e);
+            for (var insert : group) {
+                try {
+                    insert.result.complete(nodeService.createNode(insert.node));
+                } catch (RuntimeException nodeException) {
+                    insert.result.completeExceptionally(nodeException);
+                }
+            }
+            return;
+        }
+        var createdById = new HashMap<Integer, Node>(createdNodes.size() * 2);
+        for (var node : createdNodes) {
+            createdById.put(node.id, new Node(node.id, node.parentId, node.rootId, node.height));
+        }
+        for (var insert : group) {
+            insert.result.complete(createdById.get(insert.node.id));
+        }
+    }
+
+    private static class Insert {
+
+        final Node node;
+
+        final CompletableFuture<Node> result = new CompletableFuture<>();
+
+        Insert(Node node) {
+            this.node = node;
+        }
+    }
+}
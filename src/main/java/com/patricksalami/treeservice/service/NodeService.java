@@ -1,16 +1,48 @@
 package com.patricksalami.treeservice.service;
 
+import com.patricksalami.treeservice.cache.NodeCache;
 import com.patricksalami.treeservice.exceptions.CyclicalTreeStructureException;
 import com.patricksalami.treeservice.exceptions.InvalidNodeException;
 import com.patricksalami.treeservice.exceptions.MoveAttemptToSelfException;
+import com.patricksalami.treeservice.exceptions.NoCommonAncestorException;
 import com.patricksalami.treeservice.exceptions.NodeExistsException;
+import com.patricksalami.treeservice.exceptions.RequiredFieldException;
+import com.patricksalami.treeservice.exceptions.TooManyDeferredNodesException;
+import com.patricksalami.treeservice.dao.CommonAncestor;
+import com.patricksalami.treeservice.dao.DescendantsCursor;
 import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeMove;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.dao.SubtreeStats;
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesCreatedEvent;
+import com.patricksalami.treeservice.events.NodesDeletedEvent;
+import com.patricksalami.treeservice.index.IntervalIndex;
+import com.patricksalami.treeservice.index.TopologyIndex;
 import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.util.DescendantsFormat;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.CannotAcquireLockException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 @Service()
 public class NodeService {
@@ -18,28 +50,92 @@ public class NodeService {
     @Autowired
     NodeRepository nodeRepository;
 
+    /**
+     * optional in-memory copy of the topology; when it is enabled, all checks and single node lookups are answered
+     * without a database query
+     */
+    @Autowired(required = false)
+    TopologyIndex topologyIndex;
+
+    /**
+     * optional cache for single node lookups; only used when the topology index is disabled
+     */
+    @Autowired(required = false)
+    NodeCache nodeCache;
+
+    /**
+     * optional interval index in the nodes table; when it is enabled, unpaged descendant streams of whole subtrees are
+     * read with a range scan of the nodes table instead of the closure table
+     */
+    @Autowired(required = false)
+    IntervalIndex intervalIndex;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    /**
+     * for the chunks of streamed imports, which are committed one by one (see importNodes)
+     */
+    private TransactionTemplate importTransaction;
+
+    /**
+     * the number of nodes that are read from a streamed import before they are committed
+     */
+    @Value("${treeservice.import.chunk-size:10000}")
+    int importChunkSize;
+
+    /**
+     * the number of nodes of a streamed import that may wait for a parent or root listed after them
+     */
+    @Value("${treeservice.import.max-deferred:100000}")
+    int importMaxDeferred;
+
+    /**
+     * whether writes to the same tree are serialized with advisory locks (see lockTrees)
+     */
+    @Value("${treeservice.tree-locks.enabled:true}")
+    boolean treeLocksEnabled;
+
+    @PostConstruct
+    void createImportTransaction() {
+        importTransaction = new TransactionTemplate(transactionManager);
+    }
+
     @Transactional
     public Node createNode(Node node) throws RuntimeException {
+        var indexed = lockTrees(List.of(node.parentId, node.rootId));
         // first, ensure that a node with this id does not already exist
-        Node existingNode = nodeRepository.findById(node.id);
-        if(existingNode != null) {
+        if(existsForWrite(node.id, indexed)) {
             throw new NodeExistsException();
         }
         // now, ensure that the parent node and root node of this node exist
-        Node parentNode = nodeRepository.findById(node.parentId);
+        Node parentNode = node.parentId > 0 ? findForWrite(node.parentId, indexed) : null;
         if(parentNode == null && node.parentId > 0) {
             throw new InvalidNodeException(node.parentId);
         }
-        Node rootNode = nodeRepository.findById(node.rootId);
-        if(rootNode == null && node.id != node.rootId) {
+        if(node.id != node.rootId && !existsForWrite(node.rootId, indexed)) {
             throw new InvalidNodeException(node.rootId);
         }
+        // the new node belongs to the tree of its parent; the given root may be stale if the caller read it while
+        // the parent was being moved to another tree
+        if (parentNode != null) {
+            node.rootId = parentNode.rootId;
+        }
         Node resultNode = nodeRepository.createNodesTableEntry(node);
+        resultNode.height = parentNode != null ? parentNode.height + 1 : 0;
         nodeRepository.createChildrenTableEntry(resultNode);
         nodeRepository.addNodeToParentUpdate(resultNode.id, resultNode.parentId);
-        // in order to calculate height, we re-load the Node from the repo
-        Node outputNode = nodeRepository.findById(resultNode.id);
-        return outputNode;
+        if (resultNode.parentId > 0) {
+            nodeRepository.addToSubtreeStats(resultNode.parentId, 1, 1, 1);
+        }
+        if (intervalIndex != null) {
+            intervalIndex.onNodesCreated(List.of(resultNode));
+        }
+        eventPublisher.publishEvent(new NodesCreatedEvent(List.of(resultNode)));
+        return new Node(resultNode.id, resultNode.parentId, resultNode.rootId, resultNode.height);
     }
 
     /**
@@ -56,43 +152,745 @@ public class NodeService {
         if (nodeId == newParentId) {
             throw new MoveAttemptToSelfException();
         }
+        var indexed = lockTrees(List.of(nodeId, newParentId));
         // moving a node to one of its descendants is not allowed
-        if (nodeRepository.isDescendantOf(nodeId, newParentId)) {
+        if (isDescendantForWrite(nodeId, newParentId, indexed)) {
             throw new CyclicalTreeStructureException();
         }
-        Node node = nodeRepository.findById(nodeId);
+        Node node = findForWrite(nodeId, indexed);
         if(node == null) {
             throw new InvalidNodeException(nodeId);
         }
-        Node newParent = nodeRepository.findById(newParentId);
+        Node newParent = findForWrite(newParentId, indexed);
         if(newParent == null) {
             throw new InvalidNodeException(newParentId);
         }
+        SubtreeStats stats = nodeRepository.findSubtreeStats(nodeId);
         int oldParentId = node.parentId;
+        int oldRootId = node.rootId;
         node.parentId = newParentId;
         // if we are moving the node to a new tree, update the root
         node.rootId = newParent.rootId;
+        // the subtree is numbered into the gap below its new parent while it can still be found by its old root
+        var renumber = intervalIndex != null && !intervalIndex.onNodeMoving(nodeId, oldRootId, newParentId);
 
         //first, update the closure table to remove the parent-descendant relationships for all affected nodes
-        nodeRepository.removeNodeFromParentUpdate(node.id, oldParentId);
+        nodeRepository.removeNodeFromParentUpdate(node.id);
+        //the old parent and its ancestors lose the subtree
+        if (oldParentId > 0) {
+            nodeRepository.removeFromSubtreeStats(oldParentId, stats.descendants + 1, stats.leaves);
+        }
+        //the heights within the subtree change by the same amount as the height of the moved node
+        int heightDelta = newParent.height + 1 - node.height;
+        if (heightDelta != 0 || oldRootId != node.rootId) {
+            nodeRepository.updateSubtree(node.id, heightDelta, node.rootId);
+        }
+        if (oldRootId != node.rootId) {
+            nodeRepository.updateSubtreeRoot(node.id, node.rootId);
+        }
         //then, update the main nodes table with the new parent
         nodeRepository.updateNodesTableEntry(node);
         //now, update the one record in the children table that references the node as its own descendant
         nodeRepository.updateChildrenTableEntry(node);
         //lastly, update the closure table with new parent-descendant entries for the moved node
         nodeRepository.addNodeToParentUpdate(nodeId, newParentId);
+        //and the new parent and its ancestors gain it
+        nodeRepository.addToSubtreeStats(newParentId, stats.descendants + 1, stats.leaves, stats.maxDepth + 1);
+        if (renumber) {
+            intervalIndex.renumber(node.rootId);
+        }
+        eventPublisher.publishEvent(new NodeMovedEvent(nodeId, oldParentId, newParentId, node.rootId));
+    }
+
+    /**
+     * Moves many nodes (with their subtrees) in a single transaction; either all moves are applied or none. The moves
+     * are validated together, so a batch is rejected if the moves would create a cycle when applied as a whole,
+     * even if each of them would be valid on its own, and may contain moves that are only valid because of another
+     * move in the same batch. If the same node is moved more than once, the last move wins; moves to the current
+     * parent are ignored.
+     *
+     * Instead of the checks and statements of moveNode for every single move, all nodes are looked up with a few
+     * IN (...) queries and the closure table is updated with one set-based DELETE for all moved subtrees plus a few
+     * JDBC batches (see NodeRepository.moveNodesUpdate). Moves of nested subtrees are coalesced: every moved node
+     * only takes the part of its subtree along that does not belong to another moved node.
+     *
+     * @param moves
+     * @return the number of nodes that were moved
+     * @throws RuntimeException
+     */
+    @Transactional
+    public int moveNodes(List<NodeMove> moves) throws RuntimeException {
+        var newParents = new LinkedHashMap<Integer, Integer>();
+        for (var move : moves) {
+            if (move.nodeId == move.newParentId) {
+                throw new MoveAttemptToSelfException();
+            }
+            newParents.remove(move.nodeId);
+            newParents.put(move.nodeId, move.newParentId);
+        }
+        var ids = new HashSet<Integer>(newParents.keySet());
+        ids.addAll(newParents.values());
+        var nodes = lockTrees(ids) ? topologyIndex.findNodes(ids) : nodeRepository.findByIds(ids);
+        newParents.forEach((nodeId, newParentId) -> {
+            if (!nodes.containsKey(nodeId)) {
+                throw new InvalidNodeException(nodeId);
+            }
+            if (!nodes.containsKey(newParentId)) {
+                throw new InvalidNodeException(newParentId);
+            }
+        });
+        newParents.entrySet().removeIf(move -> nodes.get(move.getKey()).parentId == move.getValue());
+        if (newParents.isEmpty()) {
+            return 0;
+        }
+
+        // after the moved subtrees have been detached, each new parent belongs to the subtree of the closest moved
+        // node above it (if there is one), and can only be attached to once that subtree is in its final place
+        var subtrees = nodeRepository.findClosestAncestors(new HashSet<>(newParents.values()), newParents.keySet());
+        var orderedIds = orderMoves(newParents, subtrees);
+
+        var movedNodes = new ArrayList<Node>(orderedIds.size());
+        var movedNodesById = new HashMap<Integer, Node>();
+        var heightDeltas = new HashMap<Integer, Integer>();
+        var rootChanges = new HashSet<Integer>();
+        for (var nodeId : orderedIds) {
+            var node = nodes.get(nodeId);
+            var newParent = nodes.get(newParents.get(nodeId));
+            var parentHeight = newParent.height;
+            var rootId = newParent.rootId;
+            var subtree = subtrees.get(newParent.id);
+            if (subtree != null) {
+                // the new parent is moved along with the subtree it belongs to
+                var top = movedNodesById.get(subtree);
+                parentHeight += heightDeltas.getOrDefault(subtree, 0);
+                rootId = top.rootId;
+            }
+            var movedNode = new Node(nodeId, newParent.id, rootId, parentHeight + 1);
+            if (movedNode.height != node.height) {
+                heightDeltas.put(nodeId, movedNode.height - node.height);
+            }
+            if (movedNode.rootId != node.rootId) {
+                rootChanges.add(nodeId);
+            }
+            movedNodes.add(movedNode);
+            movedNodesById.put(nodeId, movedNode);
+        }
+        nodeRepository.moveNodesUpdate(movedNodes, heightDeltas, rootChanges);
+        if (intervalIndex != null) {
+            // the moved subtrees may be nested, so their trees are numbered again as a whole
+            var rootIds = new HashSet<Integer>();
+            for (var movedNode : movedNodes) {
+                rootIds.add(movedNode.rootId);
+            }
+            intervalIndex.renumber(rootIds);
+        }
+        for (var movedNode : movedNodes) {
+            eventPublisher.publishEvent(new NodeMovedEvent(movedNode.id, nodes.get(movedNode.id).parentId,
+                    movedNode.parentId, movedNode.rootId));
+        }
+        return movedNodes.size();
+    }
+
+    /**
+     * deletes the next batch of a subtree that is being deleted, in its own transaction (see
+     * NodeRepository.deleteSubtreeBatch); the subtree is deleted completely once this returns 0
+     *
+     * @param nodeId
+     * @param limit
+     * @return the number of nodes that were deleted
+     * @throws RuntimeException
+     */
+    @Transactional
+    public int deleteSubtreeBatch(int nodeId, int limit) throws RuntimeException {
+        lockTrees(List.of(nodeId));
+        var deletedNodes = nodeRepository.deleteSubtreeBatch(nodeId, limit);
+        if (!deletedNodes.isEmpty()) {
+            eventPublisher.publishEvent(new NodesDeletedEvent(deletedNodes));
+        }
+        return deletedNodes.size();
+    }
+
+    /**
+     * Serializes the writes to a tree: takes a transaction-scoped advisory lock on the tree of each of the given nodes
+     * (see NodeRepository.lockTrees), so conflicting writes to the same tree queue up in the order in which they
+     * arrive instead of deadlocking on the row locks of the closure table, while writes to different trees do not
+     * wait for each other. Every write takes its locks before it reads anything it validates or updates.
+     *
+     * The roots are read before the locks are taken, so a node may have been moved to another tree in the meantime;
+     * the roots are read again once the locks are held, and the locks of any new roots are taken as well. Waiting for
+     * a new root that is lower than one of the roots already locked would break the lock order (and could deadlock
+     * with a write that holds it and waits for one of ours), so those locks are only taken if they are free; if one
+     * of them is not, the write fails with a CannotAcquireLockException and may be retried. Nodes that do not exist
+     * are ignored.
+     *
+     * If the topology index is enabled, the roots are taken from the index. Every write applies its changes to the
+     * index before its commit releases the locks, so once the locks are held, the index has the latest state of the
+     * locked trees, unless it is stale or a write to them is still being rolled back (see TopologyIndex.isCurrent);
+     * in that case, the roots are read again from the database, and so are the nodes that the write checks.
+     *
+     * @param nodeIds
+     * @return whether the checks of the write can be made against the topology index (see findForWrite)
+     * @throws RuntimeException
+     */
+    private boolean lockTrees(Collection<Integer> nodeIds) throws RuntimeException {
+        if (!treeLocksEnabled) {
+            return indexed();
+        }
+        var lockedIds = new HashSet<Integer>();
+        var fromIndex = indexed();
+        var rootIds = fromIndex ? topologyIndex.findRootIds(nodeIds) : nodeRepository.findRootIds(nodeIds);
+        var verified = false;
+        while (true) {
+            rootIds.removeAll(lockedIds);
+            if (rootIds.isEmpty() && verified) {
+                return fromIndex;
+            }
+            if (!lockedIds.isEmpty()) {
+                var maxLockedId = Collections.max(lockedIds);
+                var lowerIds = new ArrayList<Integer>();
+                for (var rootId : rootIds) {
+                    if (rootId < maxLockedId) {
+                        lowerIds.add(rootId);
+                    }
+                }
+                if (!lowerIds.isEmpty() && !nodeRepository.tryLockTrees(lowerIds)) {
+                    throw new CannotAcquireLockException(String.format(
+                            "A node was moved to tree %s while waiting for the lock of its tree", lowerIds));
+                }
+                rootIds.removeAll(lowerIds);
+                lockedIds.addAll(lowerIds);
+            }
+            if (!rootIds.isEmpty()) {
+                nodeRepository.lockTrees(rootIds);
+                lockedIds.addAll(rootIds);
+            }
+            fromIndex = fromIndex && topologyIndex.isCurrent(lockedIds);
+            rootIds = fromIndex ? topologyIndex.findRootIds(nodeIds) : nodeRepository.findRootIds(nodeIds);
+            verified = true;
+        }
+    }
+
+    /**
+     * orders the moves so that every move comes after the move of the subtree that its new parent belongs to; since
+     * each move depends on at most one other move, following these dependencies either ends at a move that is
+     * already ordered (or at a new parent that is not moved at all), or runs in a circle, in which case the moves
+     * would create a cycle
+     *
+     * @param newParents
+     * @param subtrees
+     * @return
+     */
+    private static List<Integer> orderMoves(Map<Integer, Integer> newParents, Map<Integer, Integer> subtrees) {
+        var orderedIds = new ArrayList<Integer>(newParents.size());
+        var ordered = new HashSet<Integer>();
+        for (var nodeId : newParents.keySet()) {
+            var path = new ArrayList<Integer>();
+            var pathIds = new HashSet<Integer>();
+            var current = nodeId;
+            while (current != null && !ordered.contains(current)) {
+                if (!pathIds.add(current)) {
+                    throw new CyclicalTreeStructureException();
+                }
+                path.add(current);
+                current = subtrees.get(newParents.get(current));
+            }
+            for (var i = path.size() - 1; i >= 0; i--) {
+                orderedIds.add(path.get(i));
+                ordered.add(path.get(i));
+            }
+        }
+        return orderedIds;
+    }
+
+    /**
+     * imports many nodes at once, for example a whole tree that is loaded from an upstream system; see createNodes
+     *
+     * @param nodes
+     * @return the number of imported nodes
+     * @throws RuntimeException
+     */
+    @Transactional
+    public int importNodes(List<Node> nodes) throws RuntimeException {
+        return createNodes(nodes).size();
+    }
+
+    /**
+     * Imports nodes that are read one at a time, e.g. from a streamed request body, so that neither the whole list
+     * nor its closure table entries have to be held in memory. The nodes are committed in chunks of importChunkSize
+     * with createNodes; a node whose parent or root is neither part of its chunk nor exists yet is kept back for a
+     * later chunk, so the nodes may still be given in any order (but only nodes listed after their parents are
+     * written as soon as their chunk is read). Whatever is left once the stream ends is imported as a last chunk,
+     * which fails if a parent or root is still missing. Since the nodes that wait are held in memory, the import
+     * fails with a TooManyDeferredNodesException once more than importMaxDeferred of them wait at the same time.
+     *
+     * Unlike importNodes(List), the import does not succeed or fail as a whole: if a chunk fails, the chunks before
+     * it stay imported.
+     *
+     * @param nodes
+     * @return the number of imported nodes
+     * @throws RuntimeException
+     */
+    public int importNodes(Iterator<Node> nodes) throws RuntimeException {
+        var imported = 0;
+        var pending = new ArrayList<Node>();
+        while (nodes.hasNext()) {
+            for (var i = 0; i < importChunkSize && nodes.hasNext(); i++) {
+                pending.add(nodes.next());
+            }
+            if (!nodes.hasNext()) {
+                break;
+            }
+            var ready = new ArrayList<Node>();
+            var deferred = new ArrayList<Node>();
+            splitImportChunk(pending, ready, deferred);
+            if (deferred.size() > importMaxDeferred) {
+                throw new TooManyDeferredNodesException(importMaxDeferred);
+            }
+            if (!ready.isEmpty()) {
+                imported += importTransaction.execute(status -> createNodes(ready).size());
+            }
+            pending = deferred;
+        }
+        if (!pending.isEmpty()) {
+            var last = pending;
+            imported += importTransaction.execute(status -> createNodes(last).size());
+        }
+        return imported;
+    }
+
+    /**
+     * splits the nodes of an import chunk into those that can be created now, because their parent and root either
+     * exist or can be created now as well, and those that have to wait for a later chunk
+     *
+     * @param nodes
+     * @param ready
+     * @param deferred
+     * @throws RuntimeException
+     */
+    private void splitImportChunk(List<Node> nodes, List<Node> ready, List<Node> deferred) throws RuntimeException {
+        var nodesById = new HashMap<Integer, Node>(nodes.size() * 2);
+        for (var node : nodes) {
+            if (nodesById.put(node.id, node) != null) {
+                throw new NodeExistsException();
+            }
+        }
+        var referencedIds = new HashSet<Integer>();
+        for (var node : nodes) {
+            for (var id : importReferences(node)) {
+                if (!nodesById.containsKey(id)) {
+                    referencedIds.add(id);
+                }
+            }
+        }
+        var existingIds = nodeRepository.findNodesById(referencedIds).keySet();
+        // nodes that reference a missing node wait, and so does everything below them in the chunk
+        var dependents = new HashMap<Integer, List<Node>>();
+        var waiting = new ArrayDeque<Node>();
+        for (var node : nodes) {
+            for (var id : importReferences(node)) {
+                if (nodesById.containsKey(id)) {
+                    dependents.computeIfAbsent(id, key -> new ArrayList<>()).add(node);
+                } else if (!existingIds.contains(id)) {
+                    waiting.add(node);
+                }
+            }
+        }
+        var deferredIds = new HashSet<Integer>();
+        while (!waiting.isEmpty()) {
+            var node = waiting.poll();
+            if (deferredIds.add(node.id)) {
+                waiting.addAll(dependents.getOrDefault(node.id, List.of()));
+            }
+        }
+        for (var node : nodes) {
+            (deferredIds.contains(node.id) ? deferred : ready).add(node);
+        }
+    }
+
+    /**
+     * the parent and root of a node that have to exist before it can be imported
+     */
+    private static List<Integer> importReferences(Node node) {
+        var ids = new ArrayList<Integer>(2);
+        if (node.parentId > 0) {
+            ids.add(node.parentId);
+        }
+        if (node.rootId != 0 && node.rootId != node.id) {
+            ids.add(node.rootId);
+        }
+        return ids;
+    }
+
+    /**
+     * Creates many nodes at once. The nodes may be given in any order and may reference each other as well as nodes
+     * that already exist. We give the same guarantees as createNode for every node in the list (no duplicate ids, no
+     * missing parent or root nodes), and in addition make sure that the nodes in the list do not form a cycle. As in
+     * createNode, every node with a parent is placed in the tree of its parent, whatever root it was given.
+     *
+     * Instead of several round trips per node, the existence of the new nodes and of all referenced parents and roots
+     * is checked with a single (chunked) IN (...) query, the nodes table is filled with JDBC batches, and the closure
+     * table entries within the new nodes are computed in memory and batch-inserted. The new subtrees are then linked
+     * to the ancestors of their existing parents with one INSERT ... SELECT per parent, so adding thousands of
+     * children to a few parents only takes a few statements.
+     *
+     * @param nodes
+     * @return the created nodes with their heights, ordered so that every parent comes before its children
+     * @throws RuntimeException
+     */
+    @Transactional
+    public List<Node> createNodes(List<Node> nodes) throws RuntimeException {
+        var nodesById = new HashMap<Integer, Node>(nodes.size() * 2);
+        for (var node : nodes) {
+            if (node.id == 0) {
+                throw new RequiredFieldException("id");
+            }
+            if (node.rootId == 0) {
+                throw new RequiredFieldException("rootId");
+            }
+            if (nodesById.put(node.id, node) != null) {
+                throw new NodeExistsException();
+            }
+        }
+        // none of the new nodes may exist yet, and every parent and root that is not part of the list must exist
+        var referencedIds = new HashSet<Integer>();
+        for (var node : nodes) {
+            if (node.parentId > 0 && !nodesById.containsKey(node.parentId)) {
+                referencedIds.add(node.parentId);
+            }
+            if (node.rootId != node.id && !nodesById.containsKey(node.rootId)) {
+                referencedIds.add(node.rootId);
+            }
+        }
+        var indexed = lockTrees(referencedIds);
+        var lookupIds = new HashSet<Integer>(nodesById.keySet());
+        lookupIds.addAll(referencedIds);
+        var existingNodes = indexed ? topologyIndex.findNodes(lookupIds) : nodeRepository.findNodesById(lookupIds);
+        for (var id : nodesById.keySet()) {
+            if (existingNodes.containsKey(id)) {
+                throw new NodeExistsException();
+            }
+        }
+        for (var id : referencedIds) {
+            if (!existingNodes.containsKey(id)) {
+                throw new InvalidNodeException(id);
+            }
+        }
+
+        var orderedNodes = sortTopologically(nodes, nodesById);
+        // parents come first, so their height and root are always known by the time we get to their children
+        for (var node : orderedNodes) {
+            if (node.parentId <= 0) {
+                node.height = 0;
+                continue;
+            }
+            var parent = nodesById.containsKey(node.parentId)
+                    ? nodesById.get(node.parentId) : existingNodes.get(node.parentId);
+            node.height = parent.height + 1;
+            node.rootId = parent.rootId;
+        }
+        // the new subtrees are linked to the ancestors of their existing parents, which are read once per parent
+        var existingParentIds = new HashSet<Integer>();
+        for (var node : orderedNodes) {
+            if (node.parentId > 0 && !nodesById.containsKey(node.parentId)) {
+                existingParentIds.add(node.parentId);
+            }
+        }
+        var parentEntries = nodeRepository.findAncestorEntries(existingParentIds);
+        // children come last, so the aggregates of all children of a node are known by the time we get to the node
+        var stats = new HashMap<Integer, SubtreeStats>(nodesById.size() * 2);
+        var additions = new LinkedHashMap<Integer, int[]>();
+        for (var i = orderedNodes.size() - 1; i >= 0; i--) {
+            var node = orderedNodes.get(i);
+            var nodeStats = stats.computeIfAbsent(node.id, id -> new SubtreeStats(id, 0, 0, 0));
+            if (nodeStats.descendants == 0) {
+                nodeStats.leaves = 1;
+            }
+            if (nodesById.containsKey(node.parentId)) {
+                var parentStats = stats.computeIfAbsent(node.parentId, id -> new SubtreeStats(id, 0, 0, 0));
+                parentStats.descendants += nodeStats.descendants + 1;
+                parentStats.maxDepth = Math.max(parentStats.maxDepth, nodeStats.maxDepth + 1);
+                parentStats.leaves += nodeStats.leaves;
+            } else if (node.parentId > 0) {
+                // {parentId, nodes, leaves, depth} for each existing parent, see NodeRepository.addToSubtreeStats
+                var addition = additions.computeIfAbsent(node.parentId, id -> new int[]{id, 0, 0, 0});
+                addition[1] += nodeStats.descendants + 1;
+                addition[2] += nodeStats.leaves;
+                addition[3] = Math.max(addition[3], nodeStats.maxDepth + 1);
+            }
+        }
+        nodeRepository.batchCreateNodesTableEntries(orderedNodes, stats);
+        nodeRepository.batchCreateChildrenTableEntries(orderedNodes, parentEntries);
+        nodeRepository.batchAddToSubtreeStats(new ArrayList<>(additions.values()));
+        if (intervalIndex != null) {
+            intervalIndex.onNodesCreated(orderedNodes);
+        }
+        eventPublisher.publishEvent(new NodesCreatedEvent(orderedNodes));
+        return orderedNodes;
+    }
+
+    /**
+     * orders the nodes so that each parent comes before its children (breadth-first, starting with the nodes whose
+     * parent is not part of the list); nodes that can not be reached this way are part of a cycle
+     *
+     * @param nodes
+     * @param nodesById
+     * @return
+     */
+    private static List<Node> sortTopologically(List<Node> nodes, HashMap<Integer, Node> nodesById) {
+        var childrenByParent = new HashMap<Integer, List<Node>>();
+        var queue = new ArrayDeque<Node>();
+        for (var node : nodes) {
+            if (node.parentId > 0 && nodesById.containsKey(node.parentId)) {
+                childrenByParent.computeIfAbsent(node.parentId, k -> new ArrayList<>()).add(node);
+            } else {
+                queue.add(node);
+            }
+        }
+        var orderedNodes = new ArrayList<Node>(nodes.size());
+        while (!queue.isEmpty()) {
+            var node = queue.poll();
+            orderedNodes.add(node);
+            var children = childrenByParent.get(node.id);
+            if (children != null) {
+                queue.addAll(children);
+            }
+        }
+        if (orderedNodes.size() != nodes.size()) {
+            throw new CyclicalTreeStructureException();
+        }
+        return orderedNodes;
     }
 
     public Node findById(int id) throws RuntimeException {
+        if (indexed()) {
+            return topologyIndex.find(id);
+        }
+        if (nodeCache != null) {
+            return nodeCache.find(id);
+        }
         return nodeRepository.findById(id);
     }
 
+    @Transactional(readOnly = true)
     public void streamDescendantsById(int id, OutputStream outputStream) throws  RuntimeException {
-        nodeRepository.streamDescendantsById(id, outputStream);
+        streamDescendantsById(id, 1, Integer.MAX_VALUE, DescendantsFormat.JSON, outputStream);
+    }
+
+    @Transactional(readOnly = true)
+    public void streamDescendantsById(int id, int minDepth, int maxDepth, OutputStream outputStream)
+            throws RuntimeException {
+        streamDescendantsById(id, minDepth, maxDepth, DescendantsFormat.JSON, outputStream);
+    }
+
+    /**
+     * streams the descendants of a node in a read-only transaction; the JDBC driver only fetches the rows in chunks
+     * (instead of reading the whole subtree into memory first) while autocommit is disabled. If the interval index is
+     * enabled and the whole subtree is requested, the descendants are read with a single range scan of the nodes
+     * table; with a depth range, the scan would still have to read the whole subtree, so the closure table, which is
+     * indexed by depth, is used instead.
+     *
+     * @param id
+     * @param minDepth
+     * @param maxDepth
+     * @param format
+     * @param outputStream
+     * @return the number of descendants that were written
+     * @throws RuntimeException
+     */
+    @Transactional(readOnly = true)
+    public int streamDescendantsById(int id, int minDepth, int maxDepth, DescendantsFormat format,
+                                     OutputStream outputStream) throws RuntimeException {
+        if (intervalIndex != null && minDepth <= 1 && maxDepth == Integer.MAX_VALUE) {
+            return nodeRepository.streamDescendantsByInterval(id, minDepth, maxDepth, format, outputStream);
+        }
+        return nodeRepository.streamDescendantsById(id, minDepth, maxDepth, format, outputStream);
+    }
+
+    @Transactional(readOnly = true)
+    public void streamDescendantsPage(DescendantsCursor cursor, int limit, OutputStream outputStream)
+            throws RuntimeException {
+        streamDescendantsPage(cursor, 1, Integer.MAX_VALUE, limit, DescendantsFormat.JSON, outputStream);
+    }
+
+    @Transactional(readOnly = true)
+    public void streamDescendantsPage(DescendantsCursor cursor, int minDepth, int maxDepth, int limit,
+                                      OutputStream outputStream) throws RuntimeException {
+        streamDescendantsPage(cursor, minDepth, maxDepth, limit, DescendantsFormat.JSON, outputStream);
+    }
+
+    @Transactional(readOnly = true)
+    public int streamDescendantsPage(DescendantsCursor cursor, int minDepth, int maxDepth, int limit,
+                                     DescendantsFormat format, OutputStream outputStream) throws RuntimeException {
+        return nodeRepository.streamDescendantsPage(cursor, minDepth, maxDepth, limit, format, outputStream);
+    }
+
+    public void streamAncestorsById(int id, OutputStream outputStream) throws RuntimeException {
+        streamAncestorsById(id, DescendantsFormat.JSON, outputStream);
+    }
+
+    /**
+     * streams the ancestors of a node, starting with the parent and ending with the root
+     *
+     * @param id
+     * @param format
+     * @param outputStream
+     * @throws RuntimeException
+     */
+    public void streamAncestorsById(int id, DescendantsFormat format, OutputStream outputStream)
+            throws RuntimeException {
+        nodeRepository.streamAncestorsById(id, format, outputStream);
+    }
+
+    /**
+     * returns the ancestors of many nodes at once (see NodeRepository.findAncestors), keyed by node id
+     *
+     * @param ids
+     * @return
+     * @throws RuntimeException
+     */
+    public Map<Integer, List<Node>> findAncestors(Collection<Integer> ids) throws RuntimeException {
+        return nodeRepository.findAncestors(new LinkedHashSet<>(ids));
+    }
+
+    /**
+     * returns the aggregates of the subtree below a node (number of descendants, max depth and number of leaves),
+     * which are stored with the node and kept up to date with every change to the subtree
+     *
+     * @param id
+     * @return
+     * @throws RuntimeException
+     */
+    public SubtreeStats findSubtreeStats(int id) throws RuntimeException {
+        var stats = nodeRepository.findSubtreeStats(id);
+        if (stats == null) {
+            throw new InvalidNodeException(id);
+        }
+        return stats;
+    }
+
+    /**
+     * Verifies the stored subtree aggregates of the given nodes against the closure table and corrects them where
+     * they differ. The nodes are locked first, so the aggregates can not be changed by another transaction while
+     * they are computed; nodes that are currently being changed by another transaction are skipped.
+     *
+     * @param ids
+     * @return the number of nodes whose aggregates were corrected
+     * @throws RuntimeException
+     */
+    @Transactional
+    public int reconcileSubtreeStats(Collection<Integer> ids) throws RuntimeException {
+        var lockedIds = nodeRepository.lockNodes(ids);
+        if (lockedIds.isEmpty()) {
+            return 0;
+        }
+        return nodeRepository.recomputeSubtreeStats(lockedIds);
     }
 
     public boolean isDescendantOf(int parentId, int childId) {
+        if (indexed()) {
+            return topologyIndex.isDescendantOf(parentId, childId);
+        }
+        return nodeRepository.isDescendantOf(parentId, childId);
+    }
+
+    /**
+     * checks many parent-descendant relationships at once, from the topology index if it is enabled and with a
+     * single query per chunk of relationships otherwise
+     *
+     * @param relationships
+     * @return whether each of the relationships exists, in the same order
+     * @throws RuntimeException
+     */
+    public List<Boolean> areDescendantsOf(List<NodeRelationship> relationships) throws RuntimeException {
+        if (indexed()) {
+            return topologyIndex.areDescendantsOf(relationships);
+        }
+        return nodeRepository.areDescendantsOf(relationships);
+    }
+
+    /**
+     * returns the lowest common ancestor of two nodes and the distance between them
+     *
+     * @param nodeId
+     * @param otherNodeId
+     * @return
+     * @throws RuntimeException
+     */
+    public CommonAncestor findCommonAncestor(int nodeId, int otherNodeId) throws RuntimeException {
+        if (!exists(nodeId)) {
+            throw new InvalidNodeException(nodeId);
+        }
+        if (!exists(otherNodeId)) {
+            throw new InvalidNodeException(otherNodeId);
+        }
+        var commonAncestor = indexed()
+                ? topologyIndex.findCommonAncestor(nodeId, otherNodeId)
+                : nodeRepository.findCommonAncestor(nodeId, otherNodeId);
+        if (commonAncestor == null) {
+            throw new NoCommonAncestorException(nodeId, otherNodeId);
+        }
+        return commonAncestor;
+    }
+
+    /**
+     * looks up a node that is about to be written; from the topology index if lockTrees found it to be up to date,
+     * and from the database otherwise. Once its tree is locked, the node cache is bypassed, since it is only updated
+     * after the previous write to the tree has been committed (which already releases the lock).
+     *
+     * @param id
+     * @param indexed the result of lockTrees
+     * @return
+     */
+    private Node findForWrite(int id, boolean indexed) {
+        if (indexed) {
+            return topologyIndex.find(id);
+        }
+        return treeLocksEnabled ? nodeRepository.findById(id) : findById(id);
+    }
+
+    /**
+     * the check of isDescendantOf for a write (see findForWrite)
+     *
+     * @param parentId
+     * @param childId
+     * @param indexed the result of lockTrees
+     * @return
+     */
+    private boolean isDescendantForWrite(int parentId, int childId, boolean indexed) {
+        if (indexed) {
+            return topologyIndex.isDescendantOf(parentId, childId);
+        }
         return nodeRepository.isDescendantOf(parentId, childId);
     }
 
+    /**
+     * the check of exists for a write (see findForWrite)
+     *
+     * @param id
+     * @param indexed the result of lockTrees
+     * @return
+     */
+    private boolean existsForWrite(int id, boolean indexed) {
+        if (indexed) {
+            return topologyIndex.contains(id);
+        }
+        return findForWrite(id, false) != null;
+    }
+
+    private boolean exists(int id) {
+        if (indexed()) {
+            return topologyIndex.contains(id);
+        }
+        return findById(id) != null;
+    }
+
+    /**
+     * whether reads can be answered from the topology index, i.e. it is enabled and not being reloaded
+     *
+     * @return
+     */
+    private boolean indexed() {
+        return topologyIndex != null && topologyIndex.isCurrent();
+    }
+
 }
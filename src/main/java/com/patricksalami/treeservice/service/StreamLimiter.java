@@ -0,0 +1,72 @@
+package com.patricksalami.treeservice.service;
+
+import com.patricksalami.treeservice.exceptions.TooManyStreamsException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of descendant and ancestor streams that may run at the same time. Each stream holds a database
+ * connection (for the cursor) and a thread for as long as the client takes to read the response, so without a limit a
+ * few slow clients downloading large subtrees could use up the whole connection pool and block all other requests.
+ *
+ * The limit is set with treeservice.stream.max-concurrent and should be lower than the size of the connection pool.
+ */
+@Component
+public class StreamLimiter {
+
+    @Value("${treeservice.stream.max-concurrent:8}")
+    int maxConcurrent;
+
+    private Semaphore permits;
+
+    @PostConstruct
+    void createPermits() {
+        permits = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * returns a permit for a new stream without waiting; the permit must be released once the stream has finished
+     *
+     * @return
+     * @throws RuntimeException TooManyStreamsException if max-concurrent streams are already running
+     */
+    public Permit acquire() throws RuntimeException {
+        if (!permits.tryAcquire()) {
+            throw new TooManyStreamsException();
+        }
+        return new Permit();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * a permit can safely be released more than once, so that it can be released both by the stream itself and by
+     * the request's completion callback (which is the only place that sees streams that never started, e.g. because
+     * the request timed out while the stream was waiting for a thread)
+     */
+    public class Permit implements AutoCloseable {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
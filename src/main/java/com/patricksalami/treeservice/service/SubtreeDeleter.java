@@ -0,0 +1,126 @@
+package com.patricksalami.treeservice.service;
+
+import com.patricksalami.treeservice.dao.SubtreeDeletion;
+import com.patricksalami.treeservice.exceptions.InvalidDeletionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes subtrees in the background, treeservice.delete.batch-size nodes per transaction (see
+ * NodeService.deleteSubtreeBatch), so that deleting a huge subtree neither holds its locks until the whole subtree is
+ * gone nor writes all of it to the WAL in a single transaction. The progress of every deletion can be looked up by
+ * its id while it runs and for a while after it has finished.
+ *
+ * Deletions run one after another on a single thread, so two deletions never compete for the same nodes. A batch
+ * that fails because nodes were added below it or locked by another transaction in the meantime is retried; the
+ * deletion fails after MAX_ATTEMPTS failed attempts in a row, leaving behind the part of the subtree that has not been
+ * deleted yet (which is still a valid tree).
+ */
+@Component
+public class SubtreeDeleter {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * the number of deletions whose progress is kept; the oldest ones are forgotten first
+     */
+    private static final int MAX_DELETIONS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(SubtreeDeleter.class);
+
+    @Autowired
+    NodeService nodeService;
+
+    @Value("${treeservice.delete.batch-size:1000}")
+    int batchSize;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private final Map<Integer, SubtreeDeletion> deletions = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, SubtreeDeletion> eldest) {
+                    return size() > MAX_DELETIONS;
+                }
+            });
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "subtree-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * queues the deletion of a node and its subtree
+     *
+     * @param nodeId
+     * @return the progress of the deletion, which is updated while it runs
+     * @throws RuntimeException if the node does not exist
+     */
+    public SubtreeDeletion delete(int nodeId) throws RuntimeException {
+        var stats = nodeService.findSubtreeStats(nodeId);
+        var deletion = new SubtreeDeletion(sequence.incrementAndGet(), nodeId, SubtreeDeletion.State.QUEUED,
+                stats.descendants + 1, 0);
+        deletions.put(deletion.id, deletion);
+        executor.execute(() -> run(deletion));
+        return deletion;
+    }
+
+    public SubtreeDeletion find(int id) throws RuntimeException {
+        var deletion = deletions.get(id);
+        if (deletion == null) {
+            throw new InvalidDeletionException(id);
+        }
+        return deletion;
+    }
+
+    private void run(SubtreeDeletion deletion) {
+        deletion.state = SubtreeDeletion.State.RUNNING;
+        var attempts = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int deleted;
+                try {
+                    deleted = nodeService.deleteSubtreeBatch(deletion.nodeId, batchSize);
+                    attempts = 0;
+                } catch (DataIntegrityViolationException | TransientDataAccessException e) {
+                    if (++attempts == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    logger.info("Retrying a batch of the deletion of node {}: {}", deletion.nodeId, e.getMessage());
+                    continue;
+                }
+                if (deleted == 0) {
+                    deletion.state = SubtreeDeletion.State.COMPLETED;
+                    return;
+                }
+                deletion.deleted += deleted;
+            }
+            deletion.state = SubtreeDeletion.State.FAILED;
+            deletion.error = "interrupted";
+        } catch (RuntimeException e) {
+            logger.error("Deleting the subtree of node {} failed after {} nodes", deletion.nodeId,
+                    deletion.deleted, e);
+            deletion.error = e.getMessage();
+            deletion.state = SubtreeDeletion.State.FAILED;
+        }
+    }
+}
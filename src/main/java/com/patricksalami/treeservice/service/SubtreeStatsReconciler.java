@@ -0,0 +1,57 @@
+package com.patricksalami.treeservice.service;
+
+import com.patricksalami.treeservice.repository.NodeRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * A background job that verifies the subtree aggregates that are maintained incrementally by the NodeService. Every
+ * run checks the next treeservice.subtree-stats.reconcile.batch-size nodes (in id order, starting over once all nodes
+ * have been checked), so the whole table is covered over time without holding long locks. Since the aggregates of a
+ * node are computed from its whole subtree, a batch that contains the roots of large trees takes longer.
+ *
+ * Incorrect aggregates should never be found; if they are, they are corrected and a warning is logged.
+ *
+ * The job is enabled with treeservice.subtree-stats.reconcile.enabled=true.
+ */
+@Component
+@EnableScheduling
+@ConditionalOnProperty(name = "treeservice.subtree-stats.reconcile.enabled", havingValue = "true")
+public class SubtreeStatsReconciler {
+
+    private final Logger logger = LoggerFactory.getLogger(SubtreeStatsReconciler.class);
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Value("${treeservice.subtree-stats.reconcile.batch-size:100}")
+    int batchSize;
+
+    /**
+     * the largest id that was checked by the previous run
+     */
+    private int lastId;
+
+    @Scheduled(fixedDelayString = "${treeservice.subtree-stats.reconcile.interval:60000}")
+    public void reconcile() {
+        var ids = nodeRepository.findIdsAfter(lastId, batchSize);
+        lastId = ids.size() < batchSize ? 0 : ids.get(ids.size() - 1);
+        if (ids.isEmpty()) {
+            return;
+        }
+        var corrected = nodeService.reconcileSubtreeStats(ids);
+        if (corrected > 0) {
+            logger.warn("Corrected the subtree stats of {} nodes between {} and {}", corrected, ids.get(0),
+                    ids.get(ids.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.patricksalami.treeservice.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes descendants as fixed-width binary records: every node is written as four big-endian 32 bit integers
+ * (id, parentId, rootId, height), i.e. 16 bytes per node without any separators.
+ *
+ * Paged responses end with a record that consists of four zeros (node ids are never 0), followed by the ASCII bytes
+ * of the cursor for the next page; on the last page, the zero record is the last thing in the response.
+ */
+public class BinaryDescendantsWriter implements DescendantsWriter {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final DataOutputStream dataOutputStream;
+
+    public BinaryDescendantsWriter(OutputStream outputStream) {
+        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+    }
+
+    @Override
+    public void writeStart(boolean paged) {
+    }
+
+    @Override
+    public void writeNode(int id, int parentId, int rootId, int height) throws IOException {
+        dataOutputStream.writeInt(id);
+        dataOutputStream.writeInt(parentId);
+        dataOutputStream.writeInt(rootId);
+        dataOutputStream.writeInt(height);
+    }
+
+    @Override
+    public void writeEnd(boolean paged, String nextCursor) throws IOException {
+        if (paged) {
+            dataOutputStream.writeLong(0);
+            dataOutputStream.writeLong(0);
+            if (nextCursor != null) {
+                dataOutputStream.write(nextCursor.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataOutputStream.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.patricksalami.treeservice.util;
+
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * the output formats supported by the descendants endpoint, with the media type that selects them
+ */
+public enum DescendantsFormat {
+    JSON("application/json"),
+    NDJSON("application/x-ndjson"),
+    BINARY("application/octet-stream");
+
+    private final String mediaType;
+
+    DescendantsFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * picks the format for the media type that the client prefers (according to the order and quality values of
+     * the Accept header); JSON is used if the header is missing, invalid or does not name a supported format
+     *
+     * @param accept
+     * @return
+     */
+    public static DescendantsFormat fromAcceptHeader(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return JSON;
+        }
+        try {
+            var mediaTypes = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for (var mediaType : mediaTypes) {
+                for (var format : values()) {
+                    if (mediaType.equalsTypeAndSubtype(MediaType.parseMediaType(format.mediaType))) {
+                        return format;
+                    }
+                }
+                if (mediaType.isWildcardType() || mediaType.isWildcardSubtype()) {
+                    return JSON;
+                }
+            }
+        } catch (InvalidMediaTypeException e) {
+            return JSON;
+        }
+        return JSON;
+    }
+
+    public DescendantsWriter createWriter(OutputStream outputStream) throws IOException {
+        switch (this) {
+            case NDJSON:
+                return new NdjsonDescendantsWriter(outputStream);
+            case BINARY:
+                return new BinaryDescendantsWriter(outputStream);
+            default:
+                return new JsonDescendantsWriter(outputStream);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.patricksalami.treeservice.util;
+
+import com.patricksalami.treeservice.dao.DescendantsCursor;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Streams descendant rows (id, parentId, rootId, height) to the client in the requested format. The columns are
+ * read by position with getInt, so no column metadata is looked up and no values are boxed.
+ *
+ * For paged responses the query is expected to return one row more than the page size, with the relative depth as
+ * the fifth column; if that row is present, we know that there is another page and return a cursor pointing after
+ * the last row that was written, otherwise the cursor is null.
+ *
+ * The number of rows that were written is returned, so that callers can record it.
+ */
+public class DescendantsResultSetExtractor implements ResultSetExtractor<Integer> {
+
+    private final OutputStream outputStream;
+    private final DescendantsFormat format;
+    private final boolean paged;
+    private final int nodeId;
+    private final int limit;
+
+    public DescendantsResultSetExtractor(final OutputStream outputStream, DescendantsFormat format) {
+        this.outputStream = outputStream;
+        this.format = format;
+        this.paged = false;
+        this.nodeId = 0;
+        this.limit = Integer.MAX_VALUE;
+    }
+
+    public DescendantsResultSetExtractor(final OutputStream outputStream, DescendantsFormat format, int nodeId,
+                                         int limit) {
+        this.outputStream = outputStream;
+        this.format = format;
+        this.paged = true;
+        this.nodeId = nodeId;
+        this.limit = limit;
+    }
+
+    @Override
+    public Integer extractData(ResultSet resultSet) throws SQLException, DataAccessException {
+        var rows = 0;
+        try (var writer = format.createWriter(outputStream)) {
+            writer.writeStart(paged);
+            var lastDepth = 0;
+            var lastDescendant = 0;
+            var hasMore = false;
+            while (resultSet.next()) {
+                if (rows == limit) {
+                    hasMore = true;
+                    break;
+                }
+                lastDescendant = resultSet.getInt(1);
+                if (paged) {
+                    lastDepth = resultSet.getInt(5);
+                }
+                writer.writeNode(lastDescendant, resultSet.getInt(2), resultSet.getInt(3), resultSet.getInt(4));
+                rows++;
+            }
+            writer.writeEnd(paged, hasMore ? new DescendantsCursor(nodeId, lastDepth, lastDescendant).encode() : null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return rows;
+    }
+}
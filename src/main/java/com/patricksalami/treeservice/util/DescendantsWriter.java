@@ -0,0 +1,18 @@
+package com.patricksalami.treeservice.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes a stream of descendants in one of the supported output formats (see DescendantsFormat). A writer is used
+ * for a single response: writeStart, then writeNode for every row, then writeEnd. Paged responses additionally carry
+ * the cursor for the next page (or null on the last page).
+ */
+public interface DescendantsWriter extends Closeable {
+
+    void writeStart(boolean paged) throws IOException;
+
+    void writeNode(int id, int parentId, int rootId, int height) throws IOException;
+
+    void writeEnd(boolean paged, String nextCursor) throws IOException;
+}
@@ -0,0 +1,122 @@
+package com.patricksalami.treeservice.util;
+
+import java.util.Arrays;
+
+/**
+ * A minimal open-addressing hash map from int keys to int values that avoids boxing; used e.g. to map node ids
+ * to positions in the primitive arrays of the TopologyIndex. Node ids are never 0, so 0 is used to mark free slots
+ * and can not be used as a key.
+ */
+public class IntIntHashMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private final int missingValue;
+
+    public IntIntHashMap(int expectedSize, int missingValue) {
+        var capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.missingValue = missingValue;
+    }
+
+    public int get(int key) {
+        var mask = keys.length - 1;
+        for (var i = hash(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return missingValue;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != missingValue;
+    }
+
+    public void put(int key, int value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 can not be used as a key");
+        }
+        var mask = keys.length - 1;
+        var i = hash(key) & mask;
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * removes a key; the entries that follow it in the same probe sequence are shifted back into the free slot, so
+     * no tombstones are needed and lookups of the remaining keys still find them
+     *
+     * @param key
+     */
+    public void remove(int key) {
+        if (key == 0) {
+            return;
+        }
+        var mask = keys.length - 1;
+        var i = hash(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        for (var j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            // the entry in slot j may only move to slot i if i is not before its home slot (cyclically)
+            var home = hash(keys[j]) & mask;
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        var mask = capacity - 1;
+        for (var j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                var i = hash(oldKeys[j]) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        var h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
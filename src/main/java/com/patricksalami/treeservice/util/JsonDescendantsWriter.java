@@ -0,0 +1,82 @@
+package com.patricksalami.treeservice.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes descendants as a JSON array of objects, or as {"descendants": [...], "next": "cursor"} for paged responses.
+ *
+ * This is on the hot path of every descendants request, so it is written to avoid allocations per row: the
+ * JsonFactory is shared (it is thread-safe, and lets the generators recycle their output buffers), the field names
+ * are pre-encoded once, and the int values are written with writeNumber(int), which formats the digits directly
+ * into the generator's byte buffer instead of going through boxed objects or strings.
+ */
+public class JsonDescendantsWriter implements DescendantsWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static final SerializableString ID = new SerializedString("id");
+    static final SerializableString PARENT_ID = new SerializedString("parentId");
+    static final SerializableString ROOT_ID = new SerializedString("rootId");
+    static final SerializableString HEIGHT = new SerializedString("height");
+    static final SerializableString DESCENDANTS = new SerializedString("descendants");
+    static final SerializableString NEXT = new SerializedString("next");
+
+    private final JsonGenerator jsonGenerator;
+
+    public JsonDescendantsWriter(OutputStream outputStream) throws IOException {
+        this.jsonGenerator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8);
+    }
+
+    @Override
+    public void writeStart(boolean paged) throws IOException {
+        if (paged) {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeFieldName(DESCENDANTS);
+            jsonGenerator.writeStartArray();
+        } else {
+            jsonGenerator.writeStartArray();
+        }
+    }
+
+    @Override
+    public void writeNode(int id, int parentId, int rootId, int height) throws IOException {
+        writeNodeObject(jsonGenerator, id, parentId, rootId, height);
+    }
+
+    static void writeNodeObject(JsonGenerator jsonGenerator, int id, int parentId, int rootId, int height)
+            throws IOException {
+        jsonGenerator.writeStartObject();
+        jsonGenerator.writeFieldName(ID);
+        jsonGenerator.writeNumber(id);
+        jsonGenerator.writeFieldName(PARENT_ID);
+        jsonGenerator.writeNumber(parentId);
+        jsonGenerator.writeFieldName(ROOT_ID);
+        jsonGenerator.writeNumber(rootId);
+        jsonGenerator.writeFieldName(HEIGHT);
+        jsonGenerator.writeNumber(height);
+        jsonGenerator.writeEndObject();
+    }
+
+    @Override
+    public void writeEnd(boolean paged, String nextCursor) throws IOException {
+        jsonGenerator.writeEndArray();
+        if (paged) {
+            jsonGenerator.writeFieldName(NEXT);
+            jsonGenerator.writeString(nextCursor);
+            jsonGenerator.writeEndObject();
+        }
+        jsonGenerator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        jsonGenerator.close();
+    }
+}
@@ -0,0 +1,50 @@
+package com.patricksalami.treeservice.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes descendants as newline delimited JSON: one object per line, so that clients can parse the response line by
+ * line while it is still being streamed. Paged responses end with an additional {"next": "cursor"} line.
+ */
+public class NdjsonDescendantsWriter implements DescendantsWriter {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().setRootValueSeparator(null);
+
+    private final JsonGenerator jsonGenerator;
+
+    public NdjsonDescendantsWriter(OutputStream outputStream) throws IOException {
+        this.jsonGenerator = JSON_FACTORY.createGenerator(outputStream, JsonEncoding.UTF8);
+    }
+
+    @Override
+    public void writeStart(boolean paged) {
+    }
+
+    @Override
+    public void writeNode(int id, int parentId, int rootId, int height) throws IOException {
+        JsonDescendantsWriter.writeNodeObject(jsonGenerator, id, parentId, rootId, height);
+        jsonGenerator.writeRaw('\n');
+    }
+
+    @Override
+    public void writeEnd(boolean paged, String nextCursor) throws IOException {
+        if (paged) {
+            jsonGenerator.writeStartObject();
+            jsonGenerator.writeFieldName(JsonDescendantsWriter.NEXT);
+            jsonGenerator.writeString(nextCursor);
+            jsonGenerator.writeEndObject();
+            jsonGenerator.writeRaw('\n');
+        }
+        jsonGenerator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        jsonGenerator.close();
+    }
+}
@@ -13,28 +13,36 @@ VALUES
 (8,4,1) ON CONFLICT DO NOTHING;
 
 
-INSERT INTO "public"."children"("ancestor","descendant","depth","parent","root")
+INSERT INTO "public"."children"("ancestor","descendant","depth","parent","root","height")
 VALUES
-(1,1,0,NULL,1),
-(1,2,1,1,1),
-(1,3,1,1,1),
-(1,4,2,2,1),
-(1,5,2,2,1),
-(1,6,3,4,1),
-(1,7,3,4,1),
-(1,8,3,4,1),
-(2,2,0,1,1),
-(2,4,1,2,1),
-(2,5,1,2,1),
-(2,6,2,4,1),
-(2,7,2,4,1),
-(2,8,2,4,1),
-(3,3,0,1,1),
-(4,4,0,2,1),
-(4,6,1,4,1),
-(4,7,1,4,1),
-(4,8,1,4,1),
-(5,5,0,2,1),
-(6,6,0,4,1),
-(7,7,0,4,1),
-(8,8,0,4,1) ON CONFLICT DO NOTHING;
\ No newline at end of file
+(1,1,0,NULL,1,0),
+(1,2,1,1,1,1),
+(1,3,1,1,1,1),
+(1,4,2,2,1,2),
+(1,5,2,2,1,2),
+(1,6,3,4,1,3),
+(1,7,3,4,1,3),
+(1,8,3,4,1,3),
+(2,2,0,1,1,1),
+(2,4,1,2,1,2),
+(2,5,1,2,1,2),
+(2,6,2,4,1,3),
+(2,7,2,4,1,3),
+(2,8,2,4,1,3),
+(3,3,0,1,1,1),
+(4,4,0,2,1,2),
+(4,6,1,4,1,3),
+(4,7,1,4,1,3),
+(4,8,1,4,1,3),
+(5,5,0,2,1,2),
+(6,6,0,4,1,3),
+(7,7,0,4,1,3),
+(8,8,0,4,1,3) ON CONFLICT DO NOTHING;
+
+UPDATE nodes n
+SET descendants = s.descendants, max_depth = s.max_depth, leaves = s.leaves
+FROM (SELECT c.ancestor AS id, count(*) - 1 AS descendants, max(c.depth) AS max_depth,
+        count(*) FILTER (WHERE NOT EXISTS (
+          SELECT 1 FROM children k WHERE k.ancestor = c.descendant AND k.depth = 1)) AS leaves
+      FROM children c GROUP BY c.ancestor) s
+WHERE n.id = s.id;
\ No newline at end of file
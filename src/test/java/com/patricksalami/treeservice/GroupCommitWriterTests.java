@@ -0,0 +1,169 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.exceptions.InvalidNodeException;
+import com.patricksalami.treeservice.exceptions.NodeExistsException;
+import com.patricksalami.treeservice.exceptions.WriteTimeoutException;
+import com.patricksalami.treeservice.service.GroupCommitWriter;
+import com.patricksalami.treeservice.service.NodeService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(properties = {"treeservice.group-commit.enabled=true", "treeservice.group-commit.max-delay=20"})
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class GroupCommitWriterTests {
+
+    @Autowired
+    GroupCommitWriter groupCommitWriter;
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Test
+    public void createsConcurrentInsertsInGroups() throws InterruptedException {
+        for (int id = 2; id <= 10; id++) {
+            nodeService.createNode(new Node(id, 1, 1));
+        }
+        var groups = meterRegistry.get("treeservice.group-commit.size").summary().count();
+
+        // 16 threads insert 20 leaves each below the first ten nodes (the root and its children)
+        var created = new ConcurrentHashMap<Integer, Node>();
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var executor = Executors.newFixedThreadPool(16);
+        for (int thread = 0; thread < 16; thread++) {
+            var firstId = 100 * (thread + 1);
+            executor.execute(() -> {
+                for (int i = 0; i < 20; i++) {
+                    try {
+                        var node = groupCommitWriter.createNode(new Node(firstId + i, 1 + i % 10, 1));
+                        created.put(node.id, node);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(0, failures.size());
+        assertEquals(320, created.size());
+        assertEquals(2, created.get(101).height);
+        assertEquals(1, created.get(110).height);
+
+        // every node was committed before it was returned
+        for (var node : created.values()) {
+            assertEquals(node.parentId, nodeService.findById(node.id).parentId);
+        }
+        assertEquals(320 + 9, nodeService.findSubtreeStats(1).descendants);
+        assertTrue(meterRegistry.get("treeservice.group-commit.size").summary().count() - groups < 320);
+    }
+
+    @Test
+    public void failedInsertsDoNotFailTheirGroup() throws InterruptedException {
+        var results = new ConcurrentHashMap<Integer, Object>();
+        var nodes = new ArrayList<Node>();
+        nodes.add(new Node(2, 1, 1));
+        nodes.add(new Node(3, 99, 1));
+        nodes.add(new Node(4, 1, 1));
+        nodes.add(new Node(1, 1, 1));
+        var executor = Executors.newFixedThreadPool(nodes.size());
+        for (var node : nodes) {
+            executor.execute(() -> {
+                try {
+                    results.put(node.id, groupCommitWriter.createNode(node));
+                } catch (RuntimeException e) {
+                    results.put(node.id, e);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        assertTrue(results.get(2) instanceof Node);
+        assertTrue(results.get(3) instanceof InvalidNodeException);
+        assertTrue(results.get(4) instanceof Node);
+        assertTrue(results.get(1) instanceof NodeExistsException);
+        assertEquals(2, nodeService.findSubtreeStats(1).descendants);
+    }
+
+    @Test
+    public void groupedInsertsTakeTheRootOfTheirParent() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(10, 0, 10));
+
+        // the given root is stale: the parent belongs to the tree of node 1
+        var single = nodeService.createNode(new Node(3, 2, 10));
+        var grouped = groupCommitWriter.createNode(new Node(4, 2, 10));
+        var nodes = new ArrayList<Node>();
+        nodes.add(new Node(5, 2, 10));
+        nodes.add(new Node(6, 5, 10));
+        var batch = nodeService.createNodes(nodes);
+
+        for (var node : List.of(single, grouped, batch.get(0), batch.get(1))) {
+            assertEquals(1, node.rootId);
+            assertEquals(1, nodeService.findById(node.id).rootId);
+        }
+        assertEquals(single.height, grouped.height);
+        assertEquals(single.height, batch.get(0).height);
+        assertEquals(5, nodeService.findSubtreeStats(1).descendants);
+        assertEquals(0, nodeService.findSubtreeStats(10).descendants);
+    }
+
+    @Test
+    public void writerErrorsFailTheirGroup() {
+        var failingService = mock(NodeService.class);
+        when(failingService.createNodes(any())).thenThrow(new StackOverflowError());
+        var writer = startWriter(failingService, 1000);
+        var e = assertThrows(CompletionException.class, () -> writer.createNode(new Node(2, 1, 1)));
+        assertTrue(e.getCause() instanceof StackOverflowError);
+        // the writer is still running
+        e = assertThrows(CompletionException.class, () -> writer.createNode(new Node(3, 1, 1)));
+        assertTrue(e.getCause() instanceof StackOverflowError);
+    }
+
+    @Test
+    public void insertsTimeOut() {
+        var slowService = mock(NodeService.class);
+        when(slowService.createNodes(any())).thenAnswer(invocation -> {
+            Thread.sleep(1000);
+            return invocation.getArgument(0);
+        });
+        var writer = startWriter(slowService, 100);
+        assertThrows(WriteTimeoutException.class, () -> writer.createNode(new Node(2, 1, 1)));
+    }
+
+    /**
+     * starts a writer outside of the application context, on top of the given service
+     */
+    private GroupCommitWriter startWriter(NodeService service, long timeout) {
+        var writer = new GroupCommitWriter();
+        ReflectionTestUtils.setField(writer, "nodeService", service);
+        ReflectionTestUtils.setField(writer, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(writer, "maxSize", 10);
+        ReflectionTestUtils.setField(writer, "maxDelay", 1L);
+        ReflectionTestUtils.setField(writer, "queueSize", 10);
+        ReflectionTestUtils.setField(writer, "timeout", timeout);
+        ReflectionTestUtils.invokeMethod(writer, "startWriter");
+        return writer;
+    }
+}
@@ -0,0 +1,175 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeMove;
+import com.patricksalami.treeservice.index.IntervalIndex;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.service.NodeService;
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "treeservice.interval-index.enabled=true")
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class IntervalIndexTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Autowired
+    IntervalIndex intervalIndex;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    public void rebuildIndex() {
+        // data.sql resets the database behind the service's back
+        intervalIndex.rebuild();
+    }
+
+    private void createSampleTree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(7, 4, 1));
+        nodeService.createNode(new Node(8, 4, 1));
+    }
+
+    /**
+     * compares the descendants read with the interval index to those read from the closure table
+     */
+    private void assertSameAsClosureTable(int... ids) {
+        for (int id : ids) {
+            for (int[] depths : new int[][]{{1, Integer.MAX_VALUE}, {1, 1}, {2, 3}, {3, Integer.MAX_VALUE}}) {
+                var expected = new ByteArrayOutputStream();
+                var actual = new ByteArrayOutputStream();
+                var expectedRows = nodeRepository.streamDescendantsById(id, depths[0], depths[1],
+                        DescendantsFormat.BINARY, expected);
+                var actualRows = nodeService.streamDescendantsById(id, depths[0], depths[1],
+                        DescendantsFormat.BINARY, actual);
+                assertEquals(expectedRows, actualRows);
+                assertEquals(records(expected.toByteArray()), records(actual.toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    public void streamsDescendantsByInterval() {
+        createSampleTree();
+        assertSameAsClosureTable(1, 2, 3, 4, 8, 99);
+
+        // a second tree, created in one batch and partly below the first tree
+        var nodes = new ArrayList<Node>();
+        nodes.add(new Node(10, 0, 10));
+        nodes.add(new Node(11, 10, 10));
+        nodes.add(new Node(12, 11, 10));
+        nodes.add(new Node(13, 10, 10));
+        nodes.add(new Node(14, 5, 1));
+        nodes.add(new Node(15, 14, 1));
+        nodeService.createNodes(nodes);
+        assertSameAsClosureTable(1, 2, 5, 10, 11, 14);
+
+        nodeService.moveNode(4, 3);
+        assertSameAsClosureTable(1, 2, 3, 4);
+        nodeService.moveNode(11, 8);
+        assertSameAsClosureTable(1, 3, 4, 8, 10, 11);
+        nodeService.moveNode(2, 13);
+        assertSameAsClosureTable(1, 2, 5, 10, 13, 14);
+        nodeService.moveNodes(List.of(new NodeMove(3, 5), new NodeMove(14, 7)));
+        assertSameAsClosureTable(1, 3, 4, 5, 7, 10, 14);
+
+        nodeService.deleteSubtreeBatch(4, 100);
+        assertSameAsClosureTable(1, 3, 4, 5, 7, 10);
+    }
+
+    @Test
+    public void renumbersWhenGapRunsOut() {
+        // every node of a chain only gets a quarter of the numbers of its parent, so the gaps run out every
+        // dozen levels
+        for (int id = 2; id <= 60; id++) {
+            nodeService.createNode(new Node(id, id - 1, 1));
+        }
+        for (int id = 100; id < 200; id++) {
+            nodeService.createNode(new Node(id, 1, 1));
+        }
+        assertSameAsClosureTable(1, 2, 30, 59, 60, 100, 199);
+
+        // the chain is moved below the end of another chain, where there is not enough room left for it
+        for (int id = 200; id < 211; id++) {
+            nodeService.createNode(new Node(id, id == 200 ? 150 : id - 1, 1));
+        }
+        nodeService.moveNode(2, 210);
+        assertSameAsClosureTable(1, 2, 30, 150, 210);
+        for (int id = 300; id < 340; id++) {
+            nodeService.createNode(new Node(id, 210, 1));
+        }
+        assertSameAsClosureTable(1, 2, 150, 210, 339);
+    }
+
+    @Test
+    public void rebuildKeepsValidNumbers() {
+        createSampleTree();
+        nodeService.createNode(new Node(10, 0, 10));
+        nodeService.createNode(new Node(11, 10, 10));
+        var ids = List.of(1, 2, 4, 8, 10, 11);
+        var before = nodeRepository.findIntervals(ids);
+        intervalIndex.rebuild();
+        var after = nodeRepository.findIntervals(ids);
+        for (var id : ids) {
+            assertArrayEquals(before.get(id), after.get(id));
+        }
+
+        // a move that was made while the index was disabled leaves node 4 outside of its new parent's interval
+        jdbcTemplate.update("UPDATE nodes SET parent = 3 WHERE id = 4");
+        jdbcTemplate.update("UPDATE children SET parent = 3 WHERE descendant = 4");
+        jdbcTemplate.update("DELETE FROM children WHERE descendant IN (4, 6, 7, 8) AND ancestor = 2");
+        jdbcTemplate.update("INSERT INTO children(ancestor, descendant, depth, parent, root, height) " +
+                "SELECT 3, descendant, depth + 1, parent, root, height FROM children WHERE ancestor = 4");
+        intervalIndex.rebuild();
+        after = nodeRepository.findIntervals(ids);
+        assertFalse(Arrays.equals(before.get(4), after.get(4)));
+        assertArrayEquals(before.get(10), after.get(10));
+        assertArrayEquals(before.get(11), after.get(11));
+        assertSameAsClosureTable(1, 2, 3, 4);
+    }
+
+    @Test
+    public void requiresTreeLocks() {
+        var index = new IntervalIndex();
+        ReflectionTestUtils.setField(index, "treeLocksEnabled", false);
+        assertThrows(IllegalStateException.class, index::rebuild);
+    }
+
+    /**
+     * the 16 byte records of a binary descendants response, which may come in any order
+     */
+    private Set<String> records(byte[] response) {
+        var buffer = ByteBuffer.wrap(response);
+        var records = new HashSet<String>();
+        while (buffer.hasRemaining()) {
+            records.add(buffer.getInt() + ":" + buffer.getInt() + ":" + buffer.getInt() + ":" + buffer.getInt());
+        }
+        return records;
+    }
+}
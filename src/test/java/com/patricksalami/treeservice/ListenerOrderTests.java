@@ -0,0 +1,86 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.cache.SubtreeVersions;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesCreatedEvent;
+import com.patricksalami.treeservice.index.TopologyIndex;
+import com.patricksalami.treeservice.service.NodeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.core.annotation.Order;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {"treeservice.topology-index.enabled=true", "treeservice.subtree-versions.enabled=true"})
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class ListenerOrderTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    TopologyIndex topologyIndex;
+
+    @Autowired
+    Observer observer;
+
+    @BeforeEach
+    public void reloadIndex() {
+        topologyIndex.reload();
+        observer.observations.clear();
+    }
+
+    @Test
+    public void indexIsUpdatedBeforeVersions() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.moveNode(4, 3);
+        assertEquals(List.of("created 2", "created 3", "created 4", "moved 4"), observer.observations);
+    }
+
+    /**
+     * runs between the listeners of the topology index and those of the subtree versions, and records each change
+     * only if the index already has it and the versions do not
+     */
+    @TestConfiguration
+    static class Observer {
+
+        @Autowired
+        TopologyIndex topologyIndex;
+
+        @Autowired
+        SubtreeVersions subtreeVersions;
+
+        final List<String> observations = new ArrayList<>();
+
+        @TransactionalEventListener
+        @Order(0)
+        public void onNodesCreated(NodesCreatedEvent event) {
+            var node = event.getNodes().get(0);
+            if (topologyIndex.contains(node.id) && subtreeVersions.getVersion(node.id) == 0) {
+                observations.add("created " + node.id);
+            }
+        }
+
+        @TransactionalEventListener
+        @Order(0)
+        public void onNodeMoved(NodeMovedEvent event) {
+            // the moved node and its new parent only get the same version once the move has been counted
+            var version = subtreeVersions.getVersion(event.getNodeId());
+            if (topologyIndex.find(event.getNodeId()).parentId == event.getNewParentId()
+                    && version != subtreeVersions.getVersion(event.getNewParentId())) {
+                observations.add("moved " + event.getNodeId());
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.metrics.StreamMetrics;
+import com.patricksalami.treeservice.service.NodeService;
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.jdbc.Sql;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class MetricsTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    StreamMetrics streamMetrics;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private long repositoryCalls(String method, String exception) {
+        var timer = meterRegistry.find("treeservice.repository").tag("method", method).tag("exception", exception)
+                .timer();
+        return timer != null ? timer.count() : 0;
+    }
+
+    private double closureRows(String update) {
+        return meterRegistry.get("treeservice.closure.rows").tag("update", update).summary().totalAmount();
+    }
+
+    @Test
+    public void repositoryCallsAreTimed() {
+        var calls = repositoryCalls("addNodeToParentUpdate", "none");
+        var added = closureRows("add");
+        var removed = closureRows("remove");
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        assertEquals(calls + 3, repositoryCalls("addNodeToParentUpdate", "none"));
+        // one entry above 2 and 3, two entries above 4
+        assertEquals(added + 4, closureRows("add"));
+
+        nodeService.moveNode(2, 3);
+        // the entries linking 2 and 4 to 1 are replaced by entries linking them to 3 and 1
+        assertEquals(removed + 2, closureRows("remove"));
+        assertEquals(added + 8, closureRows("add"));
+    }
+
+    @Test
+    public void streamsAreRecorded() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 2, 1));
+        var bytes = meterRegistry.get("treeservice.stream.bytes").tag("format", "binary").summary();
+        var rows = meterRegistry.get("treeservice.stream.rows").tag("format", "binary").summary();
+        var firstByte = meterRegistry.get("treeservice.stream.first-byte").tag("format", "binary").timer();
+        var streams = rows.count();
+        var totalBytes = bytes.totalAmount();
+        var totalRows = rows.totalAmount();
+        var firstBytes = firstByte.count();
+
+        var os = new ByteArrayOutputStream();
+        var recording = streamMetrics.start(DescendantsFormat.BINARY, System.nanoTime(), os);
+        recording.finish(nodeService.streamDescendantsById(1, 1, Integer.MAX_VALUE, DescendantsFormat.BINARY,
+                recording));
+        assertEquals(streams + 1, rows.count());
+        assertEquals(totalRows + 2, rows.totalAmount());
+        assertEquals(totalBytes + os.size(), bytes.totalAmount());
+        assertEquals(firstBytes + 1, firstByte.count());
+        assertEquals(streams + 1, meterRegistry.get("treeservice.stream.duration").tag("format", "binary").timer()
+                .count());
+    }
+}
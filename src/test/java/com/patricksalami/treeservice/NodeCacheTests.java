@@ -0,0 +1,86 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.cache.NodeCache;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.service.NodeService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.jdbc.Sql;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "treeservice.node-cache.enabled=true")
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class NodeCacheTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    NodeCache nodeCache;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void clearCache() {
+        // data.sql resets the database behind the service's back
+        nodeCache.invalidateAll();
+    }
+
+    private double cacheGets(String result) {
+        return meterRegistry.get("cache.gets").tag("cache", "nodes").tag("result", result).functionCounter().count();
+    }
+
+    @Test
+    public void lookupsAreCached() {
+        nodeService.createNode(new Node(2, 1, 1));
+        var hits = cacheGets("hit");
+        var misses = cacheGets("miss");
+
+        var node = nodeService.findById(2);
+        assertEquals(1, node.parentId);
+        assertEquals(1, node.height);
+        assertEquals(misses + 1, cacheGets("miss"));
+
+        // callers get a copy, so modifying the result does not modify the cache
+        node.parentId = 7;
+        assertEquals(1, nodeService.findById(2).parentId);
+        assertEquals(hits + 1, cacheGets("hit"));
+    }
+
+    @Test
+    public void missingNodesAreNotCached() {
+        assertNull(nodeService.findById(2));
+        nodeService.createNode(new Node(2, 1, 1));
+        assertNotNull(nodeService.findById(2));
+    }
+
+    @Test
+    public void moveInvalidatesSubtree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 4, 1));
+        nodeService.createNode(new Node(10, 0, 10));
+        nodeService.createNode(new Node(11, 10, 10));
+        for (int id = 1; id <= 5; id++) {
+            nodeService.findById(id);
+        }
+
+        nodeService.moveNode(2, 11);
+        var node = nodeService.findById(2);
+        assertEquals(11, node.parentId);
+        assertEquals(10, node.rootId);
+        assertEquals(2, node.height);
+        node = nodeService.findById(5);
+        assertEquals(4, node.parentId);
+        assertEquals(10, node.rootId);
+        assertEquals(4, node.height);
+        // nodes outside of the moved subtree are unchanged
+        assertEquals(1, nodeService.findById(3).rootId);
+    }
+}
@@ -0,0 +1,85 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.service.NodeService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {"treeservice.import.chunk-size=2", "treeservice.import.max-deferred=2"})
+@AutoConfigureMockMvc
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class NodeControllerTests {
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    NodeService nodeService;
+
+    @Test
+    public void rejectsInvalidPageSizes() throws Exception {
+        for (var limit : new String[]{"0", "-1", "10001", "2147483647"}) {
+            mockMvc.perform(get("/node/1/descendants").param("limit", limit))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string("limit is invalid"));
+        }
+        for (var limit : new String[]{"1", "10000"}) {
+            var result = mockMvc.perform(get("/node/1/descendants").param("limit", limit)).andReturn();
+            mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+        }
+    }
+
+    @Test
+    public void importsInChunks() throws Exception {
+        // the children of 2 come in the chunks before it and wait for it
+        var body = "[{\"id\": 4, \"parentId\": 2, \"rootId\": 1}, {\"id\": 5, \"parentId\": 4, \"rootId\": 1}, " +
+                "{\"id\": 3, \"parentId\": 1, \"rootId\": 1}, {\"id\": 6, \"parentId\": 3, \"rootId\": 1}, " +
+                "{\"id\": 2, \"parentId\": 1, \"rootId\": 1}, {\"id\": 10, \"rootId\": 10}, " +
+                "{\"id\": 11, \"parentId\": 10, \"rootId\": 10}]";
+        mockMvc.perform(post("/nodes/import").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isCreated())
+                .andExpect(content().string("7"));
+        assertEquals(3, nodeService.findById(5).height);
+        assertTrue(nodeService.isDescendantOf(2, 5));
+        assertTrue(nodeService.isDescendantOf(10, 11));
+
+        // the chunks before a failing chunk stay imported
+        body = "[{\"id\": 20, \"parentId\": 1, \"rootId\": 1}, {\"id\": 21, \"parentId\": 20, \"rootId\": 1}, " +
+                "{\"id\": 22, \"parentId\": 99, \"rootId\": 1}]";
+        mockMvc.perform(post("/nodes/import").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isNotFound());
+        assertNotNull(nodeService.findById(21));
+        assertNull(nodeService.findById(22));
+        mockMvc.perform(post("/nodes/import").contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"id\": 23, \"parentId\": 1, \"rootId\": 1}, " +
+                        "{\"id\": 20, \"parentId\": 1, \"rootId\": 1}]"))
+                .andExpect(status().isConflict());
+
+        mockMvc.perform(post("/nodes/import").contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"id\": 30, \"parentId\": 1, \"rootId\": 1}, {\"id\": 31,"))
+                .andExpect(status().isBadRequest())
+                .andExpect(content().string("body is invalid"));
+    }
+
+    @Test
+    public void rejectsImportsWithTooManyDeferredNodes() throws Exception {
+        // 41 to 43 wait for 40, which comes after them
+        var body = "[{\"id\": 41, \"parentId\": 40, \"rootId\": 1}, {\"id\": 42, \"parentId\": 40, \"rootId\": 1}, " +
+                "{\"id\": 43, \"parentId\": 40, \"rootId\": 1}, {\"id\": 44, \"parentId\": 1, \"rootId\": 1}, " +
+                "{\"id\": 40, \"parentId\": 1, \"rootId\": 1}]";
+        mockMvc.perform(post("/nodes/import").contentType(MediaType.APPLICATION_JSON).content(body))
+                .andExpect(status().isBadRequest());
+        assertNull(nodeService.findById(41));
+    }
+}
\ No newline at end of file
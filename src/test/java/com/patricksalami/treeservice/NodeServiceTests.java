@@ -1,9 +1,20 @@
 package com.patricksalami.treeservice;
 
+import com.patricksalami.treeservice.dao.DescendantsCursor;
 import com.patricksalami.treeservice.exceptions.CyclicalTreeStructureException;
+import com.patricksalami.treeservice.exceptions.InvalidDeletionException;
+import com.patricksalami.treeservice.exceptions.InvalidParameterException;
 import com.patricksalami.treeservice.exceptions.InvalidNodeException;
+import com.patricksalami.treeservice.exceptions.MoveAttemptToSelfException;
+import com.patricksalami.treeservice.exceptions.NoCommonAncestorException;
+import com.patricksalami.treeservice.exceptions.NodeExistsException;
 import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeMove;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.dao.SubtreeDeletion;
 import com.patricksalami.treeservice.service.NodeService;
+import com.patricksalami.treeservice.service.SubtreeDeleter;
+import com.patricksalami.treeservice.util.DescendantsFormat;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -12,11 +23,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.context.jdbc.Sql;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SpringBootTest
 public class NodeServiceTests {
@@ -26,6 +51,12 @@ public class NodeServiceTests {
     @Autowired
     NodeService nodeService;
 
+    @Autowired
+    SubtreeDeleter subtreeDeleter;
+
+    @Autowired
+    NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
     @Test
     @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
     public void getDescendants() throws IOException {
@@ -52,6 +83,241 @@ public class NodeServiceTests {
         assertEquals(expectedOutput, os.toString());
     }
 
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void getDescendantsPages() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(7, 4, 1));
+        nodeService.createNode(new Node(8, 4, 1));
+
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsPage(DescendantsCursor.first(1), 3, os);
+        os.close();
+        String expectedStart = "{\"descendants\":[" +
+                "{\"id\":2,\"parentId\":1,\"rootId\":1,\"height\":1}," +
+                "{\"id\":3,\"parentId\":1,\"rootId\":1,\"height\":1}," +
+                "{\"id\":4,\"parentId\":2,\"rootId\":1,\"height\":2}" +
+                "],\"next\":\"";
+        assertTrue(os.toString().startsWith(expectedStart));
+        String next = os.toString().substring(expectedStart.length(), os.toString().length() - 2);
+
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsPage(DescendantsCursor.decode(1, next), 3, os);
+        os.close();
+        expectedStart = "{\"descendants\":[" +
+                "{\"id\":5,\"parentId\":2,\"rootId\":1,\"height\":2}," +
+                "{\"id\":6,\"parentId\":4,\"rootId\":1,\"height\":3}," +
+                "{\"id\":7,\"parentId\":4,\"rootId\":1,\"height\":3}" +
+                "],\"next\":\"";
+        assertTrue(os.toString().startsWith(expectedStart));
+        next = os.toString().substring(expectedStart.length(), os.toString().length() - 2);
+
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsPage(DescendantsCursor.decode(1, next), 3, os);
+        os.close();
+        String expectedOutput = "{\"descendants\":[" +
+                "{\"id\":8,\"parentId\":4,\"rootId\":1,\"height\":3}" +
+                "],\"next\":null}";
+        assertEquals(expectedOutput, os.toString());
+
+        // cursors are only valid for the node they were returned for
+        final String cursor = next;
+        assertThrows(InvalidParameterException.class, () -> DescendantsCursor.decode(2, cursor));
+        assertThrows(InvalidParameterException.class, () -> DescendantsCursor.decode(1, "not a cursor"));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void getDescendantsByDepth() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(7, 4, 1));
+        nodeService.createNode(new Node(8, 4, 1));
+
+        // children only
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(2, 1, 1, os);
+        os.close();
+        String expectedOutput = "[" +
+                "{\"id\":4,\"parentId\":2,\"rootId\":1,\"height\":2}," +
+                "{\"id\":5,\"parentId\":2,\"rootId\":1,\"height\":2}" +
+                "]";
+        assertEquals(expectedOutput, os.toString());
+
+        // grandchildren only, in pages
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsPage(DescendantsCursor.first(1), 3, 3, 10, os);
+        os.close();
+        expectedOutput = "{\"descendants\":[" +
+                "{\"id\":6,\"parentId\":4,\"rootId\":1,\"height\":3}," +
+                "{\"id\":7,\"parentId\":4,\"rootId\":1,\"height\":3}," +
+                "{\"id\":8,\"parentId\":4,\"rootId\":1,\"height\":3}" +
+                "],\"next\":null}";
+        assertEquals(expectedOutput, os.toString());
+
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(2, 3, 5, os);
+        os.close();
+        assertEquals("[]", os.toString());
+    }
+
+    private static int[] readRecord(ByteBuffer buffer) {
+        return new int[]{buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt()};
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void getDescendantsFormats() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(1, 1, Integer.MAX_VALUE, DescendantsFormat.NDJSON, os);
+        os.close();
+        String expectedOutput = "{\"id\":2,\"parentId\":1,\"rootId\":1,\"height\":1}\n" +
+                "{\"id\":3,\"parentId\":1,\"rootId\":1,\"height\":1}\n" +
+                "{\"id\":4,\"parentId\":2,\"rootId\":1,\"height\":2}\n";
+        assertEquals(expectedOutput, os.toString());
+
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(1, 1, Integer.MAX_VALUE, DescendantsFormat.BINARY, os);
+        os.close();
+        var buffer = ByteBuffer.wrap(os.toByteArray());
+        assertEquals(3 * 16, buffer.remaining());
+        assertArrayEquals(new int[]{2, 1, 1, 1}, readRecord(buffer));
+        assertArrayEquals(new int[]{3, 1, 1, 1}, readRecord(buffer));
+        assertArrayEquals(new int[]{4, 2, 1, 2}, readRecord(buffer));
+
+        // paged binary output ends with a zero record, followed by the cursor if there is another page
+        os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsPage(DescendantsCursor.first(1), 1, Integer.MAX_VALUE, 2,
+                DescendantsFormat.BINARY, os);
+        os.close();
+        buffer = ByteBuffer.wrap(os.toByteArray());
+        buffer.position(2 * 16);
+        assertArrayEquals(new int[]{0, 0, 0, 0}, readRecord(buffer));
+        var cursor = new String(os.toByteArray(), buffer.position(), buffer.remaining());
+        assertEquals(new DescendantsCursor(1, 1, 3).encode(), cursor);
+
+        assertEquals(DescendantsFormat.JSON, DescendantsFormat.fromAcceptHeader(null));
+        assertEquals(DescendantsFormat.JSON, DescendantsFormat.fromAcceptHeader("*/*"));
+        assertEquals(DescendantsFormat.NDJSON, DescendantsFormat.fromAcceptHeader("application/x-ndjson"));
+        assertEquals(DescendantsFormat.BINARY,
+                DescendantsFormat.fromAcceptHeader("application/json;q=0.5, application/octet-stream"));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void streamsDescendantsThroughCursor() throws IOException {
+        // node 2 has 5,000 children, several times the rows the driver fetches at once (treeservice.stream.fetch-size)
+        var nodes = new ArrayList<Node>();
+        nodes.add(new Node(2, 1, 1));
+        for (int i = 10; i < 5010; i++) {
+            nodes.add(new Node(i, 2, 1));
+        }
+        nodeService.importNodes(nodes);
+
+        // when the first bytes are written, the query must still be open on the server; if the driver had read the
+        // whole result set first, it would already be closed
+        var openCursors = new ArrayList<String>();
+        var written = new AtomicInteger();
+        var os = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (written.getAndAdd(len) == 0) {
+                    // runs on the connection of the stream's transaction
+                    openCursors.addAll(namedParameterJdbcTemplate.getJdbcOperations()
+                            .queryForList("SELECT statement FROM pg_cursors", String.class));
+                }
+            }
+        };
+        assertEquals(5000, nodeService.streamDescendantsById(2, 1, Integer.MAX_VALUE, DescendantsFormat.BINARY, os));
+        assertEquals(5000 * 16, written.get());
+        assertTrue(openCursors.stream().anyMatch(statement -> statement.contains("children")), openCursors.toString());
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void getAncestors() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+
+        var os = new ByteArrayOutputStream();
+        nodeService.streamAncestorsById(6, os);
+        os.close();
+        String expectedOutput = "[" +
+                "{\"id\":4,\"parentId\":2,\"rootId\":1,\"height\":2}," +
+                "{\"id\":2,\"parentId\":1,\"rootId\":1,\"height\":1}," +
+                "{\"id\":1,\"parentId\":0,\"rootId\":1,\"height\":0}" +
+                "]";
+        assertEquals(expectedOutput, os.toString());
+
+        os = new ByteArrayOutputStream();
+        nodeService.streamAncestorsById(1, os);
+        os.close();
+        assertEquals("[]", os.toString());
+
+        nodeService.moveNode(4, 3);
+        var ancestors = nodeService.findAncestors(List.of(6, 1, 99));
+        assertEquals(2, ancestors.size());
+        assertTrue(ancestors.get(1).isEmpty());
+        var path = ancestors.get(6);
+        assertEquals(3, path.size());
+        assertEquals(4, path.get(0).id);
+        assertEquals(3, path.get(0).parentId);
+        assertEquals(2, path.get(0).height);
+        assertEquals(3, path.get(1).id);
+        assertEquals(1, path.get(1).parentId);
+        assertEquals(1, path.get(2).id);
+        assertEquals(0, path.get(2).parentId);
+        assertEquals(1, path.get(2).rootId);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void relationshipsAndCommonAncestors() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(10, 0, 10));
+
+        assertEquals(List.of(true, true, false, false, true, false), nodeService.areDescendantsOf(List.of(
+                new NodeRelationship(1, 6), new NodeRelationship(2, 6), new NodeRelationship(3, 6),
+                new NodeRelationship(6, 2), new NodeRelationship(4, 4), new NodeRelationship(1, 99))));
+
+        var commonAncestor = nodeService.findCommonAncestor(6, 5);
+        assertEquals(2, commonAncestor.ancestorId);
+        assertEquals(3, commonAncestor.distance);
+        commonAncestor = nodeService.findCommonAncestor(6, 3);
+        assertEquals(1, commonAncestor.ancestorId);
+        assertEquals(4, commonAncestor.distance);
+        commonAncestor = nodeService.findCommonAncestor(2, 6);
+        assertEquals(2, commonAncestor.ancestorId);
+        assertEquals(2, commonAncestor.distance);
+        commonAncestor = nodeService.findCommonAncestor(4, 4);
+        assertEquals(4, commonAncestor.ancestorId);
+        assertEquals(0, commonAncestor.distance);
+        assertThrows(NoCommonAncestorException.class, () -> nodeService.findCommonAncestor(6, 10));
+        assertThrows(InvalidNodeException.class, () -> nodeService.findCommonAncestor(6, 99));
+    }
+
     @Test
     @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
     public void moveNode() throws IOException {
@@ -86,6 +352,397 @@ public class NodeServiceTests {
         assertEquals(expectedOutputThree, osThree.toString());
     }
 
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void moveNodeUpdatesHeights() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+
+        // one level down
+        nodeService.moveNode(4, 5);
+        assertEquals(3, nodeService.findById(4).height);
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(5, os);
+        os.close();
+        String expectedOutput = "[" +
+                "{\"id\":4,\"parentId\":5,\"rootId\":1,\"height\":3}," +
+                "{\"id\":6,\"parentId\":4,\"rootId\":1,\"height\":4}" +
+                "]";
+        assertEquals(expectedOutput, os.toString());
+
+        // two levels up
+        nodeService.moveNode(4, 1);
+        assertEquals(1, nodeService.findById(4).height);
+        assertEquals(2, nodeService.findById(6).height);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void moveNodes() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(7, 4, 1));
+
+        // 4 is moved below 3, and 6 (which is part of the subtree of 4) is moved below 5; 3 is moved below 2 and
+        // 7 is "moved" to its current parent
+        var moved = nodeService.moveNodes(List.of(
+                new NodeMove(4, 3), new NodeMove(6, 5), new NodeMove(3, 2), new NodeMove(7, 4)));
+        assertEquals(3, moved);
+
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(2, os);
+        os.close();
+        String expectedOutput = "[" +
+                "{\"id\":3,\"parentId\":2,\"rootId\":1,\"height\":2}," +
+                "{\"id\":5,\"parentId\":2,\"rootId\":1,\"height\":2}," +
+                "{\"id\":4,\"parentId\":3,\"rootId\":1,\"height\":3}," +
+                "{\"id\":6,\"parentId\":5,\"rootId\":1,\"height\":3}," +
+                "{\"id\":7,\"parentId\":4,\"rootId\":1,\"height\":4}" +
+                "]";
+        assertEquals(expectedOutput, os.toString());
+        assertEquals(3, nodeService.findById(4).parentId);
+        assertEquals(4, nodeService.findById(7).height);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void moveNodesWithCycle() throws IOException {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 3, 1));
+
+        // each move is valid on its own, but together they would make 2 and 3 descendants of each other
+        assertThrows(CyclicalTreeStructureException.class,
+                () -> nodeService.moveNodes(List.of(new NodeMove(2, 5), new NodeMove(3, 4))));
+        assertThrows(CyclicalTreeStructureException.class,
+                () -> nodeService.moveNodes(List.of(new NodeMove(2, 4))));
+        assertThrows(MoveAttemptToSelfException.class,
+                () -> nodeService.moveNodes(List.of(new NodeMove(2, 2))));
+        // nothing is moved if one of the moves is invalid
+        assertThrows(InvalidNodeException.class,
+                () -> nodeService.moveNodes(List.of(new NodeMove(4, 3), new NodeMove(5, 99))));
+        assertEquals(2, nodeService.findById(4).parentId);
+
+        // moving 4 out of the subtree of 2 first makes the move of 2 below 4 valid
+        assertEquals(2, nodeService.moveNodes(List.of(new NodeMove(2, 4), new NodeMove(4, 5))));
+        assertEquals(4, nodeService.findById(2).parentId);
+        assertEquals(4, nodeService.findById(2).height);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void moveNodesMatchesClosure() {
+        // a random tree with random moves, some of them within subtrees that are moved as well
+        var random = new Random(42);
+        var parents = new HashMap<Integer, Integer>();
+        var nodes = new ArrayList<Node>();
+        for (int id = 2; id <= 500; id++) {
+            var parentId = 1 + random.nextInt(id - 1);
+            parents.put(id, parentId);
+            nodes.add(new Node(id, parentId, 1));
+        }
+        nodeService.importNodes(nodes);
+        var moves = new ArrayList<NodeMove>();
+        while (moves.size() < 100) {
+            var nodeId = 2 + random.nextInt(499);
+            var newParentId = 1 + random.nextInt(500);
+            // skip moves that would make the node a descendant of itself
+            var ancestor = newParentId;
+            while (ancestor != 1 && ancestor != nodeId) {
+                ancestor = parents.get(ancestor);
+            }
+            if (ancestor != nodeId) {
+                parents.put(nodeId, newParentId);
+                moves.add(new NodeMove(nodeId, newParentId));
+            }
+        }
+        nodeService.moveNodes(moves);
+        assertClosure(parents);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void moveNodeToAnotherTree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 2, 1));
+        nodeService.createNode(new Node(4, 3, 1));
+        nodeService.createNode(new Node(5, 1, 1));
+        nodeService.createNode(new Node(10, 0, 10));
+        nodeService.createNode(new Node(11, 10, 10));
+
+        nodeService.moveNode(3, 11);
+        assertEquals(10, nodeService.findById(4).rootId);
+        assertClosure(Map.of(2, 1, 3, 11, 4, 3, 5, 1, 11, 10));
+
+        // 3 is moved back to the first tree, and 2 is moved along below 4
+        nodeService.moveNodes(List.of(new NodeMove(3, 5), new NodeMove(2, 4)));
+        assertEquals(1, nodeService.findById(4).rootId);
+        assertClosure(Map.of(2, 4, 3, 5, 4, 3, 5, 1, 11, 10));
+    }
+
+    /**
+     * checks that the closure table contains exactly the entries (with depth, height, parent and root) that follow
+     * from the given parents, and that the nodes table has the same parents and roots as well as the right subtree
+     * aggregates; every node that is not a key of the map is a root
+     */
+    private void assertClosure(Map<Integer, Integer> parents) {
+        var ids = new HashSet<Integer>(parents.keySet());
+        ids.addAll(parents.values());
+        var expected = new ArrayList<String>();
+        var descendants = new HashMap<Integer, Integer>();
+        var maxDepths = new HashMap<Integer, Integer>();
+        var leaves = new HashMap<Integer, Integer>();
+        for (int id : ids) {
+            var path = new ArrayList<Integer>();
+            for (Integer ancestor = id; ancestor != null; ancestor = parents.get(ancestor)) {
+                path.add(ancestor);
+            }
+            var height = path.size() - 1;
+            var parentId = parents.getOrDefault(id, 0);
+            var rootId = path.get(height);
+            var leaf = !parents.containsValue(id);
+            for (int depth = 0; depth < path.size(); depth++) {
+                int ancestor = path.get(depth);
+                expected.add(String.format("%d:%d:%d:%d:%d:%d", ancestor, id, depth, height, parentId, rootId));
+                descendants.merge(ancestor, depth > 0 ? 1 : 0, Integer::sum);
+                maxDepths.merge(ancestor, depth, Math::max);
+                leaves.merge(ancestor, leaf ? 1 : 0, Integer::sum);
+            }
+        }
+        var expectedNodes = new ArrayList<String>();
+        for (int id : ids) {
+            var path = new ArrayList<Integer>();
+            for (Integer ancestor = id; ancestor != null; ancestor = parents.get(ancestor)) {
+                path.add(ancestor);
+            }
+            expectedNodes.add(String.format("%d:%d:%d:%d:%d:%d", id, parents.getOrDefault(id, 0),
+                    path.get(path.size() - 1), descendants.get(id), maxDepths.get(id), leaves.get(id)));
+        }
+        var actual = namedParameterJdbcTemplate.getJdbcOperations().queryForList(
+                "SELECT ancestor || ':' || descendant || ':' || depth || ':' || height || ':' || " +
+                        "coalesce(parent, 0) || ':' || root FROM children", String.class);
+        var actualNodes = namedParameterJdbcTemplate.getJdbcOperations().queryForList(
+                "SELECT id || ':' || coalesce(parent, 0) || ':' || root || ':' || descendants || ':' || " +
+                        "max_depth || ':' || leaves FROM nodes", String.class);
+        expected.sort(null);
+        actual.sort(null);
+        assertEquals(expected, actual);
+        expectedNodes.sort(null);
+        actualNodes.sort(null);
+        assertEquals(expectedNodes, actualNodes);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void subtreeStats() {
+        // a random tree with random single moves and new nodes, some of them in a second tree
+        var random = new Random(7);
+        var parents = new HashMap<Integer, Integer>();
+        var nodes = new ArrayList<Node>();
+        for (int id = 2; id <= 200; id++) {
+            var parentId = 1 + random.nextInt(id - 1);
+            parents.put(id, parentId);
+            nodes.add(new Node(id, parentId, 1));
+        }
+        nodeService.createNodes(nodes);
+        assertClosure(parents);
+        nodeService.createNodes(List.of(new Node(301, 300, 300), new Node(300, 0, 300)));
+        parents.put(301, 300);
+        for (int i = 0; i < 40; i++) {
+            var nodeId = 2 + random.nextInt(199);
+            var newParentId = random.nextInt(10) == 0 ? 300 : 1 + random.nextInt(200);
+            var ancestor = newParentId;
+            while (ancestor != 1 && ancestor != 300 && ancestor != nodeId) {
+                ancestor = parents.get(ancestor);
+            }
+            if (ancestor != nodeId) {
+                parents.put(nodeId, newParentId);
+                nodeService.moveNode(nodeId, newParentId);
+            }
+            var newId = 400 + i;
+            var parentId = 1 + random.nextInt(200);
+            parents.put(newId, parentId);
+            var rootId = parentId;
+            while (parents.containsKey(rootId)) {
+                rootId = parents.get(rootId);
+            }
+            nodeService.createNode(new Node(newId, parentId, rootId));
+        }
+        assertClosure(parents);
+
+        var stats = nodeService.findSubtreeStats(1);
+        assertEquals(1, stats.nodeId);
+        assertThrows(InvalidNodeException.class, () -> nodeService.findSubtreeStats(999));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void deleteSubtree() throws InterruptedException {
+        var random = new Random(11);
+        var parents = new HashMap<Integer, Integer>();
+        var nodes = new ArrayList<Node>();
+        for (int id = 2; id <= 300; id++) {
+            var parentId = 1 + random.nextInt(id - 1);
+            parents.put(id, parentId);
+            nodes.add(new Node(id, parentId, 1));
+        }
+        nodeService.createNodes(nodes);
+        var subtree = new HashSet<Integer>(List.of(3));
+        for (int id = 4; id <= 300; id++) {
+            if (subtree.contains(parents.get(id))) {
+                subtree.add(id);
+            }
+        }
+
+        // every batch leaves a valid tree with the right aggregates behind
+        int deleted;
+        int total = 0;
+        while ((deleted = nodeService.deleteSubtreeBatch(3, 7)) > 0) {
+            total += deleted;
+            assertClosure(findParents());
+        }
+        assertEquals(subtree.size(), total);
+        parents.keySet().removeAll(subtree);
+        assertEquals(parents, findParents());
+        assertNull(nodeService.findById(3));
+
+        // the whole tree, in the background
+        var deletion = subtreeDeleter.delete(1);
+        assertEquals(parents.size() + 1, deletion.total);
+        for (int i = 0; i < 100 && deletion.state != SubtreeDeletion.State.COMPLETED; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(SubtreeDeletion.State.COMPLETED, subtreeDeleter.find(deletion.id).state);
+        assertEquals(parents.size() + 1, deletion.deleted);
+        assertEquals(0, namedParameterJdbcTemplate.getJdbcOperations().queryForObject(
+                "SELECT count(*) FROM children", Integer.class));
+        assertThrows(InvalidNodeException.class, () -> subtreeDeleter.delete(1));
+        assertThrows(InvalidDeletionException.class, () -> subtreeDeleter.find(deletion.id + 1));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void concurrentWrites() throws InterruptedException {
+        // two trees of 100 nodes each, with root 1 and root 1000
+        var random = new Random(13);
+        var nodes = new ArrayList<Node>();
+        nodes.add(new Node(1000, 0, 1000));
+        for (int id = 2; id < 100; id++) {
+            nodes.add(new Node(id, 1 + random.nextInt(id - 1), 1));
+            nodes.add(new Node(999 + id, 999 + 1 + random.nextInt(id - 1), 1000));
+        }
+        nodeService.createNodes(nodes);
+        var ids = Collections.synchronizedList(new ArrayList<Integer>());
+        for (var node : nodes) {
+            ids.add(node.id);
+        }
+
+        // inserts and moves within and across both trees, from 8 threads at once; every write either succeeds, is
+        // rejected because it would create a cycle, or (rarely) asks to be retried because a node changed its tree
+        // while the write waited for the lock, but none may fail because of a deadlock or a lock timeout
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var retries = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            var threadRandom = new Random(thread);
+            var firstId = 10000 * (thread + 1);
+            executor.execute(() -> {
+                for (int i = 0; i < 50; i++) {
+                    var parentId = ids.get(threadRandom.nextInt(ids.size()));
+                    try {
+                        if (threadRandom.nextBoolean()) {
+                            var node = nodeService.createNode(new Node(firstId + i, parentId,
+                                    nodeService.findById(parentId).rootId));
+                            ids.add(node.id);
+                        } else {
+                            var nodeId = ids.get(threadRandom.nextInt(ids.size()));
+                            if (nodeId != 1 && nodeId != 1000 && nodeId != parentId) {
+                                nodeService.moveNode(nodeId, parentId);
+                            }
+                        }
+                    } catch (CyclicalTreeStructureException e) {
+                        // expected for moves below the own subtree
+                    } catch (CannotAcquireLockException e) {
+                        retries.incrementAndGet();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+        failures.forEach(e -> logger.error("concurrent write failed", e));
+        assertEquals(0, failures.size());
+        logger.info("{} concurrent writes were retryable", retries.get());
+        assertTrue(retries.get() < 40);
+        assertClosure(findParents());
+    }
+
+    private Map<Integer, Integer> findParents() {
+        var parents = new HashMap<Integer, Integer>();
+        namedParameterJdbcTemplate.getJdbcOperations().query("SELECT id, parent FROM nodes WHERE parent IS NOT NULL",
+                resultSet -> {
+                    parents.put(resultSet.getInt(1), resultSet.getInt(2));
+                });
+        return parents;
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void reconcileSubtreeStats() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 2, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        assertEquals(0, nodeService.reconcileSubtreeStats(List.of(1, 2, 3, 4)));
+
+        namedParameterJdbcTemplate.getJdbcOperations().update(
+                "UPDATE nodes SET descendants = 7, max_depth = 7, leaves = 7 WHERE id IN (1, 3)");
+        assertEquals(2, nodeService.reconcileSubtreeStats(List.of(1, 2, 3, 4)));
+        var stats = nodeService.findSubtreeStats(1);
+        assertEquals(3, stats.descendants);
+        assertEquals(2, stats.maxDepth);
+        assertEquals(2, stats.leaves);
+        stats = nodeService.findSubtreeStats(3);
+        assertEquals(0, stats.descendants);
+        assertEquals(0, stats.maxDepth);
+        assertEquals(1, stats.leaves);
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void createNodesBelowExistingParents() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 2, 1));
+        var parents = new HashMap<Integer, Integer>(Map.of(2, 1, 3, 2));
+
+        // many children of two existing parents, plus grandchildren that are listed before their parents
+        var nodes = new ArrayList<Node>();
+        for (int id = 1000; id < 1500; id++) {
+            nodes.add(new Node(id + 1000, id, 1));
+            parents.put(id + 1000, id);
+        }
+        for (int id = 1000; id < 1500; id++) {
+            var parentId = id % 2 == 0 ? 2 : 3;
+            nodes.add(new Node(id, parentId, 1));
+            parents.put(id, parentId);
+        }
+        var created = nodeService.createNodes(nodes);
+        assertEquals(1000, created.size());
+        assertEquals(1000, created.get(0).id);
+        assertEquals(2, created.get(0).height);
+        assertEquals(4, created.get(999).height);
+        assertEquals(4, nodeService.findById(2001).height);
+        assertClosure(parents);
+    }
+
     @Test
     @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
     public void createNode() {
@@ -160,11 +817,92 @@ public class NodeServiceTests {
     }
 
     @Test
-    @Disabled("generating performance test data takes a while")
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void importNodes() throws IOException {
+        // children are listed before their parents on purpose
+        int imported = nodeService.importNodes(List.of(
+                new Node(8, 4, 1),
+                new Node(6, 4, 1),
+                new Node(7, 4, 1),
+                new Node(4, 2, 1),
+                new Node(5, 2, 1),
+                new Node(2, 1, 1),
+                new Node(3, 1, 1)));
+        assertEquals(7, imported);
+
+        var os = new ByteArrayOutputStream();
+        nodeService.streamDescendantsById(2, os);
+        os.close();
+        // the import does not insert rows in the same order as createNode, so only compare the contents
+        String output = os.toString();
+        assertTrue(output.contains("{\"id\":4,\"parentId\":2,\"rootId\":1,\"height\":2}"));
+        assertTrue(output.contains("{\"id\":5,\"parentId\":2,\"rootId\":1,\"height\":2}"));
+        assertTrue(output.contains("{\"id\":6,\"parentId\":4,\"rootId\":1,\"height\":3}"));
+        assertTrue(output.contains("{\"id\":7,\"parentId\":4,\"rootId\":1,\"height\":3}"));
+        assertTrue(output.contains("{\"id\":8,\"parentId\":4,\"rootId\":1,\"height\":3}"));
+        assertFalse(output.contains("\"id\":3,"));
+        assertTrue(nodeService.isDescendantOf(1, 8));
+        assertEquals(3, nodeService.findById(8).height);
+
+        // imported subtrees can be moved like any other subtree
+        nodeService.moveNode(4, 3);
+        assertTrue(nodeService.isDescendantOf(3, 8));
+        assertFalse(nodeService.isDescendantOf(2, 8));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void importNewTree() {
+        nodeService.importNodes(List.of(
+                new Node(12, 11, 11),
+                new Node(11, 0, 11),
+                new Node(13, 12, 11)));
+        Node n = nodeService.findById(13);
+        assertEquals(11, n.rootId);
+        assertEquals(2, n.height);
+        assertTrue(nodeService.isDescendantOf(11, 13));
+        assertFalse(nodeService.isDescendantOf(1, 13));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void importWithCycle() {
+        assertThrows(CyclicalTreeStructureException.class, () -> {
+            nodeService.importNodes(List.of(
+                    new Node(2, 1, 1),
+                    new Node(3, 4, 1),
+                    new Node(4, 3, 1)));
+        });
+        assertNull(nodeService.findById(2));
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void importWithExistingNode() {
+        assertThrows(NodeExistsException.class, () -> {
+            nodeService.importNodes(List.of(new Node(1, 0, 1)));
+        });
+        assertThrows(NodeExistsException.class, () -> {
+            nodeService.importNodes(List.of(new Node(2, 1, 1), new Node(2, 1, 1)));
+        });
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void importWithInvalidParent() {
+        assertThrows(InvalidNodeException.class, () -> {
+            nodeService.importNodes(List.of(new Node(2, 1, 1), new Node(3, 99, 1)));
+        });
+        assertNull(nodeService.findById(2));
+    }
+
+    @Test
+    @Disabled("leaves 100,000 nodes in the test database")
     @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
     public void preparePerformanceTestData() {
         final int limit = 100000;
         Random r = new Random();
+        var nodes = new ArrayList<Node>(limit);
 
         for(int i = 2; i < limit; i++) {
             int parentId;
@@ -176,9 +914,9 @@ public class NodeServiceTests {
                     parentId = 2;
                 }
             }
-            var n = new Node(i, parentId, 1);
-            nodeService.createNode(n);
+            nodes.add(new Node(i, parentId, 1));
         }
+        nodeService.importNodes(nodes);
     }
 
     @Test
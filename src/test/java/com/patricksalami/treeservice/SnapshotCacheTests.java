@@ -0,0 +1,77 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.service.NodeService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {"treeservice.subtree-versions.enabled=true", "treeservice.snapshot-cache.enabled=true"})
+@AutoConfigureMockMvc
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class SnapshotCacheTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    MockMvc mockMvc;
+
+    private void createSampleTree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+    }
+
+    /**
+     * streams the descendants of a node and returns the response once the stream is done
+     */
+    private MvcResult stream(String path, String accept) throws Exception {
+        var result = mockMvc.perform(get(path).header(HttpHeaders.ACCEPT, accept)).andReturn();
+        assertTrue(result.getRequest().isAsyncStarted());
+        return mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andReturn();
+    }
+
+    @Test
+    public void cacheHitsReturnTheStreamedResponse() throws Exception {
+        createSampleTree();
+        for (var accept : new String[]{"application/json", "application/x-ndjson", "application/octet-stream"}) {
+            for (var path : new String[]{"/node/2/descendants", "/node/1/descendants?maxDepth=1",
+                    "/node/1/descendants?limit=2"}) {
+                var streamed = stream(path, accept).getResponse();
+                // the same request is answered from the snapshot, on the request thread
+                var cached = mockMvc.perform(get(path).header(HttpHeaders.ACCEPT, accept))
+                        .andExpect(status().isOk())
+                        .andExpect(header().string(HttpHeaders.CONTENT_TYPE, streamed.getContentType()))
+                        .andReturn();
+                assertFalse(cached.getRequest().isAsyncStarted());
+                assertArrayEquals(streamed.getContentAsByteArray(), cached.getResponse().getContentAsByteArray(),
+                        accept + " " + path);
+                assertEquals(streamed.getHeader(HttpHeaders.ETAG), cached.getResponse().getHeader(HttpHeaders.ETAG));
+            }
+        }
+    }
+
+    @Test
+    public void writesInvalidateSnapshots() throws Exception {
+        createSampleTree();
+        var before = stream("/node/2/descendants", "application/json").getResponse().getContentAsString();
+        nodeService.createNode(new Node(7, 5, 1));
+        var after = stream("/node/2/descendants", "application/json").getResponse().getContentAsString();
+        assertNotEquals(before, after);
+        assertTrue(after.contains("\"id\":7"));
+    }
+}
@@ -0,0 +1,83 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.exceptions.TooManyStreamsException;
+import com.patricksalami.treeservice.service.StreamLimiter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = "treeservice.stream.max-concurrent=2")
+@AutoConfigureMockMvc
+public class StreamLimiterTests {
+
+    @Autowired
+    StreamLimiter streamLimiter;
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Test
+    public void limitsConcurrentStreams() {
+        var first = streamLimiter.acquire();
+        var second = streamLimiter.acquire();
+        assertThrows(TooManyStreamsException.class, () -> streamLimiter.acquire());
+
+        second.release();
+        var third = streamLimiter.acquire();
+        assertEquals(0, streamLimiter.getAvailablePermits());
+
+        first.release();
+        third.release();
+        assertEquals(2, streamLimiter.getAvailablePermits());
+    }
+
+    @Test
+    public void releasingTwiceReturnsOnePermit() {
+        var permit = streamLimiter.acquire();
+        permit.release();
+        permit.close();
+        assertEquals(2, streamLimiter.getAvailablePermits());
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void ancestorsTakeAStreamPermit() throws Exception {
+        var first = streamLimiter.acquire();
+        var second = streamLimiter.acquire();
+        mockMvc.perform(get("/node/1/ancestors")).andExpect(status().isServiceUnavailable());
+
+        second.release();
+        var result = mockMvc.perform(get("/node/1/ancestors")).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andExpect(content().string("[]"));
+        first.release();
+        assertEquals(2, streamLimiter.getAvailablePermits());
+    }
+
+    @Test
+    @Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+    public void descendantsAreRejectedWithoutAPermit() throws Exception {
+        var first = streamLimiter.acquire();
+        var second = streamLimiter.acquire();
+        mockMvc.perform(get("/node/1/descendants"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1"));
+        assertEquals(0, streamLimiter.getAvailablePermits());
+
+        first.release();
+        var result = mockMvc.perform(get("/node/1/descendants")).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk()).andExpect(content().string("[]"));
+        second.release();
+        assertEquals(2, streamLimiter.getAvailablePermits());
+    }
+}
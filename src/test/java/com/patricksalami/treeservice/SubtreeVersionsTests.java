@@ -0,0 +1,144 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.cache.SubtreeVersions;
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.service.NodeService;
+import com.patricksalami.treeservice.util.DescendantsFormat;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = "treeservice.subtree-versions.enabled=true")
+@AutoConfigureMockMvc
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class SubtreeVersionsTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    SubtreeVersions subtreeVersions;
+
+    @Autowired
+    MockMvc mockMvc;
+
+    private void createSampleTree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+    }
+
+    @Test
+    public void createChangesAncestors() {
+        createSampleTree();
+        var before = List.of(1, 2, 3, 4, 5, 6).stream().map(subtreeVersions::getVersion).toArray();
+
+        nodeService.createNode(new Node(7, 4, 1));
+        // the new node and its ancestors change, the siblings and their subtrees do not
+        assertNotEquals(before[0], subtreeVersions.getVersion(1));
+        assertNotEquals(before[1], subtreeVersions.getVersion(2));
+        assertEquals(before[2], subtreeVersions.getVersion(3));
+        assertNotEquals(before[3], subtreeVersions.getVersion(4));
+        assertEquals(before[4], subtreeVersions.getVersion(5));
+        assertEquals(before[5], subtreeVersions.getVersion(6));
+    }
+
+    @Test
+    public void importChangesAncestors() {
+        createSampleTree();
+        var version = subtreeVersions.getVersion(1);
+        var siblingVersion = subtreeVersions.getVersion(3);
+
+        nodeService.importNodes(List.of(new Node(8, 7, 1), new Node(7, 5, 1)));
+        assertNotEquals(version, subtreeVersions.getVersion(1));
+        assertEquals(siblingVersion, subtreeVersions.getVersion(3));
+        assertTrue(subtreeVersions.getVersion(5) > subtreeVersions.getVersion(4));
+    }
+
+    @Test
+    public void moveChangesBothParentsAndSubtree() {
+        createSampleTree();
+        var before = List.of(1, 2, 3, 4, 5, 6).stream().map(subtreeVersions::getVersion).toArray();
+
+        nodeService.moveNode(4, 3);
+        // 2 loses a descendant, 3 gains one, and the heights within the subtree of 4 change
+        for (int id = 1; id <= 6; id++) {
+            if (id == 5) {
+                assertEquals(before[id - 1], subtreeVersions.getVersion(id));
+            } else {
+                assertNotEquals(before[id - 1], subtreeVersions.getVersion(id), "version of " + id);
+            }
+        }
+    }
+
+    @Test
+    public void deleteChangesAncestors() {
+        createSampleTree();
+        var before = List.of(1, 2, 3, 4, 5, 6).stream().map(subtreeVersions::getVersion).toArray();
+
+        // one node per batch, so every batch changes the remaining ancestors again
+        while (nodeService.deleteSubtreeBatch(4, 1) > 0) {
+        }
+        assertNotEquals(before[0], subtreeVersions.getVersion(1));
+        assertNotEquals(before[1], subtreeVersions.getVersion(2));
+        assertEquals(before[2], subtreeVersions.getVersion(3));
+        assertEquals(before[4], subtreeVersions.getVersion(5));
+        assertEquals(0, subtreeVersions.getVersion(4));
+        assertEquals(0, subtreeVersions.getVersion(6));
+    }
+
+    @Test
+    public void failedMoveDoesNotChangeVersions() {
+        createSampleTree();
+        var version = subtreeVersions.getVersion(2);
+        assertThrows(RuntimeException.class, () -> nodeService.moveNode(2, 6));
+        assertEquals(version, subtreeVersions.getVersion(2));
+    }
+
+    @Test
+    public void eTagDependsOnVersionAndFormat() {
+        createSampleTree();
+        var eTag = subtreeVersions.getETag(2, DescendantsFormat.JSON);
+        assertNotEquals(eTag, subtreeVersions.getETag(2, DescendantsFormat.BINARY));
+        assertEquals(eTag, subtreeVersions.getETag(2, DescendantsFormat.JSON));
+        nodeService.createNode(new Node(7, 5, 1));
+        assertNotEquals(eTag, subtreeVersions.getETag(2, DescendantsFormat.JSON));
+    }
+
+    @Test
+    public void answersMatchingETagsWithNotModified() throws Exception {
+        createSampleTree();
+        var result = mockMvc.perform(get("/node/2/descendants")).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+        var eTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(eTag);
+        mockMvc.perform(get("/node/2/descendants").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+        // the ETag of another node or format does not match
+        result = mockMvc.perform(get("/node/3/descendants").header(HttpHeaders.IF_NONE_MATCH, eTag)).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+
+        // a write below the node changes the ETag, so the old one gets the whole subtree again
+        nodeService.createNode(new Node(7, 5, 1));
+        result = mockMvc.perform(get("/node/2/descendants").header(HttpHeaders.IF_NONE_MATCH, eTag)).andReturn();
+        mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk());
+        var newETag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(newETag);
+        assertNotEquals(eTag, newETag);
+        mockMvc.perform(get("/node/2/descendants").header(HttpHeaders.IF_NONE_MATCH, newETag))
+                .andExpect(status().isNotModified());
+    }
+}
@@ -0,0 +1,273 @@
+package com.patricksalami.treeservice;
+
+import com.patricksalami.treeservice.dao.Node;
+import com.patricksalami.treeservice.dao.NodeRelationship;
+import com.patricksalami.treeservice.events.NodeMovedEvent;
+import com.patricksalami.treeservice.events.NodesCreatedEvent;
+import com.patricksalami.treeservice.exceptions.CyclicalTreeStructureException;
+import com.patricksalami.treeservice.exceptions.InvalidNodeException;
+import com.patricksalami.treeservice.exceptions.NodeExistsException;
+import com.patricksalami.treeservice.index.TopologyIndex;
+import com.patricksalami.treeservice.repository.NodeRepository;
+import com.patricksalami.treeservice.service.NodeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "treeservice.topology-index.enabled=true")
+@Sql(executionPhase = Sql.ExecutionPhase.BEFORE_TEST_METHOD, scripts = "classpath:data.sql")
+public class TopologyIndexTests {
+
+    @Autowired
+    NodeService nodeService;
+
+    @Autowired
+    NodeRepository nodeRepository;
+
+    @Autowired
+    TopologyIndex topologyIndex;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @BeforeEach
+    public void reloadIndex() {
+        // data.sql resets the database behind the service's back
+        topologyIndex.reload();
+    }
+
+    private void createSampleTree() {
+        nodeService.createNode(new Node(2, 1, 1));
+        nodeService.createNode(new Node(3, 1, 1));
+        nodeService.createNode(new Node(4, 2, 1));
+        nodeService.createNode(new Node(5, 2, 1));
+        nodeService.createNode(new Node(6, 4, 1));
+        nodeService.createNode(new Node(7, 4, 1));
+        nodeService.createNode(new Node(8, 4, 1));
+    }
+
+    private void assertSameAsRepository(int id) {
+        Node expected = nodeRepository.findById(id);
+        Node actual = topologyIndex.find(id);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.parentId, actual.parentId);
+        assertEquals(expected.rootId, actual.rootId);
+        assertEquals(expected.height, actual.height);
+    }
+
+    @Test
+    public void createNode() {
+        createSampleTree();
+        for (int id = 1; id <= 8; id++) {
+            assertSameAsRepository(id);
+        }
+        assertTrue(nodeService.isDescendantOf(1, 8));
+        assertTrue(nodeService.isDescendantOf(4, 4));
+        assertFalse(nodeService.isDescendantOf(3, 8));
+        assertFalse(nodeService.isDescendantOf(8, 4));
+        assertNull(nodeService.findById(99));
+    }
+
+    @Test
+    public void moveNode() {
+        createSampleTree();
+        nodeService.moveNode(4, 3);
+        for (int id = 1; id <= 8; id++) {
+            assertSameAsRepository(id);
+        }
+        assertTrue(nodeService.isDescendantOf(3, 8));
+        assertFalse(nodeService.isDescendantOf(2, 8));
+        assertThrows(CyclicalTreeStructureException.class, () -> nodeService.moveNode(3, 6));
+    }
+
+    @Test
+    public void findRootIds() {
+        createSampleTree();
+        nodeService.createNode(new Node(10, 0, 10));
+        nodeService.createNode(new Node(11, 10, 10));
+        assertEquals(Set.of(1, 10), topologyIndex.findRootIds(List.of(4, 11, 99)));
+        assertEquals(nodeRepository.findRootIds(List.of(4, 11, 99)), topologyIndex.findRootIds(List.of(4, 11, 99)));
+        // writes lock their trees with the roots taken from the index
+        nodeService.createNode(new Node(12, 11, 10));
+        nodeService.moveNode(10, 8);
+        assertEquals(Set.of(1), topologyIndex.findRootIds(List.of(4, 12)));
+        assertSameAsRepository(12);
+    }
+
+    @Test
+    public void checksWritesAgainstTheIndex() throws Exception {
+        createSampleTree();
+        var transaction = new TransactionTemplate(transactionManager);
+        // node 9 is created behind the service's back, so only the database has it
+        transaction.execute(status -> {
+            var node = nodeRepository.createNodesTableEntry(new Node(9, 3, 1));
+            node.height = 2;
+            nodeRepository.createChildrenTableEntry(node);
+            nodeRepository.addNodeToParentUpdate(9, 3);
+            return null;
+        });
+        assertThrows(InvalidNodeException.class, () -> nodeService.createNode(new Node(10, 9, 1)));
+        // the changes of a transaction are only applied to the index when it commits, so once it has made one, the
+        // checks of its next writes are made against the database
+        transaction.execute(status -> {
+            nodeService.createNode(new Node(11, 3, 1));
+            nodeService.createNode(new Node(10, 9, 1));
+            return null;
+        });
+        for (int i = 0; i < 100 && !topologyIndex.isCurrent(); i++) {
+            Thread.sleep(100);
+        }
+        for (int id = 1; id <= 11; id++) {
+            assertSameAsRepository(id);
+        }
+    }
+
+    @Test
+    public void reload() {
+        createSampleTree();
+        nodeService.moveNode(4, 5);
+        topologyIndex.reload();
+        for (int id = 1; id <= 8; id++) {
+            assertSameAsRepository(id);
+        }
+        assertEquals(4, nodeService.findById(8).height);
+    }
+
+    @Test
+    public void deleteNodes() {
+        createSampleTree();
+        // deletes 6, 7 and 8 in the first batch and 4 in the second, moving other nodes to the freed slots
+        assertEquals(3, nodeService.deleteSubtreeBatch(4, 3));
+        assertEquals(1, nodeService.deleteSubtreeBatch(4, 3));
+        assertEquals(0, nodeService.deleteSubtreeBatch(4, 3));
+        for (int id : new int[]{1, 2, 3, 5}) {
+            assertSameAsRepository(id);
+        }
+        assertNull(nodeService.findById(4));
+        assertNull(nodeService.findById(8));
+        assertFalse(nodeService.isDescendantOf(2, 8));
+        nodeService.createNode(new Node(9, 5, 1));
+        nodeService.moveNode(5, 3);
+        for (int id : new int[]{1, 2, 3, 5, 9}) {
+            assertSameAsRepository(id);
+        }
+        assertTrue(nodeService.isDescendantOf(3, 9));
+    }
+
+    @Test
+    public void importNodes() {
+        nodeService.importNodes(List.of(new Node(3, 2, 1), new Node(2, 1, 1), new Node(4, 3, 1)));
+        for (int id = 1; id <= 4; id++) {
+            assertSameAsRepository(id);
+        }
+    }
+
+    @Test
+    public void failedChangesAreNotIndexed() {
+        nodeService.createNode(new Node(2, 1, 1));
+        assertThrows(InvalidNodeException.class, () -> nodeService.importNodes(List.of(
+                new Node(3, 2, 1), new Node(4, 99, 1))));
+        assertNull(nodeService.findById(3));
+        assertThrows(NodeExistsException.class, () -> nodeService.createNode(new Node(2, 1, 1)));
+    }
+
+    @Test
+    public void relationshipsAndCommonAncestors() {
+        createSampleTree();
+        nodeService.createNode(new Node(10, 0, 10));
+        nodeService.moveNode(5, 3);
+        var relationships = new ArrayList<NodeRelationship>();
+        for (int ancestorId : new int[]{1, 2, 3, 4, 5, 6, 10, 99}) {
+            for (int descendantId : new int[]{1, 3, 4, 5, 8, 10, 99}) {
+                relationships.add(new NodeRelationship(ancestorId, descendantId));
+            }
+        }
+        assertEquals(nodeRepository.areDescendantsOf(relationships), nodeService.areDescendantsOf(relationships));
+        for (int id = 1; id <= 8; id++) {
+            for (int otherId = 1; otherId <= 8; otherId++) {
+                var expected = nodeRepository.findCommonAncestor(id, otherId);
+                var actual = nodeService.findCommonAncestor(id, otherId);
+                assertEquals(expected.ancestorId, actual.ancestorId);
+                assertEquals(expected.distance, actual.distance);
+            }
+        }
+        assertNull(topologyIndex.findCommonAncestor(8, 10));
+    }
+
+    @Test
+    public void undoesChangesThatAreRolledBack() {
+        createSampleTree();
+        var transaction = new TransactionTemplate(transactionManager);
+        assertThrows(IllegalStateException.class, () -> transaction.execute(status -> {
+            nodeService.createNode(new Node(9, 3, 1));
+            nodeService.moveNode(4, 9);
+            nodeService.deleteSubtreeBatch(5, 1);
+            // runs after the listeners of the index and makes the commit fail
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    assertEquals(9, topologyIndex.find(4).parentId);
+                    assertNull(topologyIndex.find(5));
+                    throw new IllegalStateException();
+                }
+            });
+            return null;
+        }));
+        assertTrue(topologyIndex.isCurrent());
+        assertNull(topologyIndex.find(9));
+        for (int id = 1; id <= 8; id++) {
+            assertSameAsRepository(id);
+        }
+    }
+
+    @Test
+    public void reloadsInTheBackground() throws Exception {
+        createSampleTree();
+        // nodes 9 and 10 are created and node 4 is moved behind the service's back
+        jdbcTemplate.update("INSERT INTO nodes(id, parent, root) VALUES (9, 3, 1), (10, 9, 1)");
+        jdbcTemplate.update("INSERT INTO children(ancestor, descendant, depth) VALUES (3, 10, 2)");
+        jdbcTemplate.update("UPDATE nodes SET parent = 3 WHERE id = 4");
+        try (var connection = dataSource.getConnection()) {
+            // keeps the reload from reading the nodes table
+            connection.setAutoCommit(false);
+            connection.createStatement().execute("LOCK TABLE nodes IN ACCESS EXCLUSIVE MODE");
+
+            topologyIndex.onNodesCreated(new NodesCreatedEvent(List.of(new Node(10, 9, 1))));
+            assertFalse(topologyIndex.isCurrent());
+            assertTrue(nodeService.isDescendantOf(3, 10));
+            // changes made while the index is stale are replayed after the reload, unless it has already read them
+            topologyIndex.onNodeMoved(new NodeMovedEvent(4, 2, 3, 1));
+            topologyIndex.onNodesCreated(new NodesCreatedEvent(List.of(new Node(11, 10, 1))));
+            connection.rollback();
+        }
+        for (int i = 0; i < 100 && !topologyIndex.isCurrent(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(topologyIndex.isCurrent());
+        assertEquals(9, topologyIndex.find(10).parentId);
+        assertEquals(3, topologyIndex.find(10).height);
+        assertEquals(3, topologyIndex.find(4).parentId);
+        assertEquals(3, topologyIndex.find(6).height);
+        assertEquals(10, topologyIndex.find(11).parentId);
+    }
+}
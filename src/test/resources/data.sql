@@ -1,10 +1,9 @@
-DELETE FROM children CASCADE;
-DELETE FROM nodes CASCADE;
+TRUNCATE children, nodes;
 
 INSERT INTO "public"."nodes"("id","parent","root")
 VALUES
 (1,NULL,1) ON CONFLICT DO NOTHING;
 
-INSERT INTO "public"."children"("ancestor","descendant","depth","parent","root")
+INSERT INTO "public"."children"("ancestor","descendant","depth","parent","root","height")
 VALUES
-(1,1,0,NULL,1) ON CONFLICT DO NOTHING;
\ No newline at end of file
+(1,1,0,NULL,1,0) ON CONFLICT DO NOTHING;
\ No newline at end of file
@@ -10,12 +10,20 @@ DROP TABLE IF EXISTS nodes cascade;
 CREATE TABLE IF NOT EXISTS nodes (
     id integer PRIMARY KEY,
     parent integer REFERENCES nodes(id),
-    root integer REFERENCES nodes(id)
+    root integer REFERENCES nodes(id),
+    descendants integer NOT NULL DEFAULT 0,
+    max_depth integer NOT NULL DEFAULT 0,
+    leaves integer NOT NULL DEFAULT 1,
+    pre bigint,
+    post bigint
 );
 
 -- Indices -------------------------------------------------------
 
 CREATE UNIQUE INDEX IF NOT EXISTS nodes_pkey ON nodes(id int4_ops);
+CREATE INDEX IF NOT EXISTS parent_idx ON nodes(parent int4_ops);
+CREATE INDEX IF NOT EXISTS root_idx ON nodes(root int4_ops);
+CREATE INDEX IF NOT EXISTS interval_idx ON nodes(root int4_ops,pre int8_ops);
 
 -- Table Definition ----------------------------------------------
 
@@ -23,8 +31,11 @@ CREATE TABLE IF NOT EXISTS children (
     ancestor integer REFERENCES nodes(id),
     descendant integer REFERENCES nodes(id),
     depth integer,
-    parent integer REFERENCES nodes(id),
-    root integer REFERENCES nodes(id)
+    -- copies of nodes.parent and nodes.root; they are not foreign keys, since every deleted node would have to be
+    -- looked up in these unindexed columns
+    parent integer,
+    root integer,
+    height integer
 );
 
 -- Indices -------------------------------------------------------